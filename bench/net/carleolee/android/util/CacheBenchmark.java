@@ -0,0 +1,133 @@
+package net.carleolee.android.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CacheStrategy under the access pattern of binding rows: get, and put on
+ * a miss. Hit ratio is reported as the 'hits' and 'misses' counters.
+ * Entries evicted from the strong tier stay softly reachable, so on a
+ * roomy heap 'misses' counts little beyond first touches; the time per op
+ * still includes demotion and promotion between the tiers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheBenchmark {
+
+    static final int KEY_SPACE = 1024;
+    // power of two, so the cursor wraps with a mask
+    static final int SEQUENCE = 1 << 16;
+
+    @Param({"16", "64", "256"})
+    public int capacity;
+
+    /** zipf: skewed like real scrolling, scan: each key in turn */
+    @Param({"zipf", "scan"})
+    public String dist;
+
+    private Integer[] mKeys;
+    private Integer[] mSequence;
+    private int mCursor;
+    private CacheStrategy<Integer, Object> mCache;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long hits;
+        public long misses;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            hits = 0;
+            misses = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        mKeys = new Integer[KEY_SPACE];
+        for (int i = 0; i < KEY_SPACE; i++)
+            mKeys[i] = Integer.valueOf(i);
+        if ("zipf".equals(dist)) {
+            mSequence = zipfSequence(mKeys, SEQUENCE, 1.0, 1);
+        } else {
+            mSequence = new Integer[SEQUENCE];
+            for (int i = 0; i < SEQUENCE; i++)
+                mSequence[i] = mKeys[i % KEY_SPACE];
+        }
+        mCache = new CacheStrategy<Integer, Object>(capacity);
+    }
+
+    /**
+     * sample 'n' keys with probability proportional to 1 / rank^s.
+     */
+    static Integer[] zipfSequence(Integer[] keys, int n, double s, long seed) {
+        double[] cdf = new double[keys.length];
+        double sum = 0;
+        for (int i = 0; i < keys.length; i++) {
+            sum += 1.0 / Math.pow(i + 1, s);
+            cdf[i] = sum;
+        }
+        Random random = new Random(seed);
+        Integer[] seq = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            double u = random.nextDouble() * sum;
+            int lo = 0;
+            int hi = keys.length - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            seq[i] = keys[lo];
+        }
+        return seq;
+    }
+
+    /** miss-then-put over the key sequence */
+    @Benchmark
+    public Object getPut(Counters counters) {
+        Integer key = mSequence[mCursor++ & (SEQUENCE - 1)];
+        Object v = mCache.get(key);
+        if (v == null) {
+            counters.misses++;
+            mCache.put(key, key);
+            return key;
+        }
+        counters.hits++;
+        return v;
+    }
+
+    /** gets of keys all strongly cached */
+    @Benchmark
+    public Object hit() {
+        return mCache.get(mKeys[mCursor++ % capacity]);
+    }
+
+    @Setup(Level.Iteration)
+    public void fill() {
+        // hit() needs the first 'capacity' keys strongly cached
+        for (int i = 0; i < capacity; i++)
+            mCache.put(mKeys[i], mKeys[i]);
+    }
+}
@@ -0,0 +1,74 @@
+package net.carleolee.android.util;
+
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Icon key generation from urls: the md5 hex names used before HashKey,
+ * against HashKey and its hex form.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KeyBenchmark {
+
+    static final int URLS = 4096;
+
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
+    private String[] mUrls;
+    private int mCursor;
+
+    @Setup
+    public void setUp() {
+        mUrls = new String[URLS];
+        for (int i = 0; i < URLS; i++)
+            mUrls[i] = "http://gae.carleolee.net/icon/" + i + ".png";
+    }
+
+    private String next() {
+        return mUrls[mCursor++ & (URLS - 1)];
+    }
+
+    /** copy of the demo's MiscUtils.md5Hex(), which needs android.* */
+    static String md5Hex(String str) throws Exception {
+        MessageDigest digester = MessageDigest.getInstance("MD5");
+        byte[] d = digester.digest(str.getBytes("UTF-8"));
+        char[] buff = new char[d.length * 2];
+        for (int i = 0, c = 0; i < d.length; i++) {
+            int v = d[i] & 0xff;
+            buff[c++] = HEX_CHARS[v >> 4];
+            buff[c++] = HEX_CHARS[v & 0x0f];
+        }
+        return new String(buff);
+    }
+
+    @Benchmark
+    public String md5Hex() throws Exception {
+        return md5Hex(next());
+    }
+
+    @Benchmark
+    public HashKey hashKey() {
+        return HashKey.of(next());
+    }
+
+    @Benchmark
+    public String hashKeyHex() {
+        return HashKey.of(next()).toHexString();
+    }
+}
@@ -0,0 +1,156 @@
+package net.carleolee.android.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LoaderEngine round trip of trivial tasks, and enqueue under contention
+ * from several producer threads.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoaderBenchmark {
+
+    static final int BATCH = 256;
+    static final int KEY_SPACE = 4096;
+    static final int PRODUCERS = 4;
+
+    static Integer[] keys() {
+        Integer[] keys = new Integer[KEY_SPACE];
+        for (int i = 0; i < KEY_SPACE; i++)
+            keys[i] = Integer.valueOf(i);
+        return keys;
+    }
+
+    /** enqueue, dequeue and deliver, waiting for each batch */
+    @State(Scope.Thread)
+    public static class RoundTrip {
+
+        @Param({"1", "2", "4", "8", "16"})
+        public int workers;
+
+        Integer[] keys;
+        int done;
+        LoaderEngine<Integer, Integer, Void, Object, Integer> loader;
+
+        @Setup
+        public void setUp() {
+            keys = keys();
+            loader = new LoaderEngine<Integer, Integer, Void, Object, Integer>(
+                    BATCH * 2, workers,
+                    new LoaderEngine.LoaderProxy<Integer, Integer, Void, Object, Integer>() {
+                public Integer doInBackground(Integer key, Integer param, Void extra) {
+                    return param;
+                }
+
+                public void onLoaded(Integer key, Integer param, Void extra,
+                        Object obj, Integer data) {
+                    synchronized (RoundTrip.this) {
+                        done++;
+                        RoundTrip.this.notify();
+                    }
+                }
+            }, Dispatchers.direct());
+        }
+
+        @TearDown
+        public void tearDown() {
+            loader.stop();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void roundTrip(RoundTrip s) throws InterruptedException {
+        synchronized (s) {
+            s.done = 0;
+        }
+        for (int i = 0; i < BATCH; i++)
+            s.loader.loadData(s.keys[i], s.keys[i], null, null);
+        synchronized (s) {
+            while (s.done < BATCH)
+                s.wait();
+        }
+    }
+
+    /**
+     * one paused loader shared by all producers: every enqueue over
+     * capacity evicts the oldest task, so the queue stays at a steady size
+     * and only the enqueue path is measured.
+     */
+    @State(Scope.Benchmark)
+    public static class Shared {
+        LoaderEngine<Integer, Integer, Void, Object, Integer> loader;
+        final AtomicInteger producers = new AtomicInteger();
+
+        @Setup
+        public void setUp() {
+            loader = new LoaderEngine<Integer, Integer, Void, Object, Integer>(
+                    BATCH, 1,
+                    new LoaderEngine.LoaderProxy<Integer, Integer, Void, Object, Integer>() {
+                public Integer doInBackground(Integer key, Integer param, Void extra) {
+                    return param;
+                }
+
+                public void onLoaded(Integer key, Integer param, Void extra,
+                        Object obj, Integer data) {
+                    // never called, loader is paused
+                }
+            }, Dispatchers.direct());
+            loader.pause();
+        }
+
+        @TearDown
+        public void tearDown() {
+            loader.stop();
+        }
+    }
+
+    /** keys of one producer, disjoint from other producers' */
+    @State(Scope.Thread)
+    public static class Producer {
+        Integer[] keys;
+        int cursor;
+        final Object view = new Object();
+
+        @Setup
+        public void setUp(Shared shared) {
+            int id = shared.producers.getAndIncrement();
+            keys = new Integer[KEY_SPACE];
+            for (int i = 0; i < KEY_SPACE; i++)
+                keys[i] = Integer.valueOf(id * KEY_SPACE + i);
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void enqueueSingle(Shared shared, Producer p) {
+        Integer key = p.keys[p.cursor++ & (KEY_SPACE - 1)];
+        shared.loader.loadData(key, key, null, p.view);
+    }
+
+    @Benchmark
+    @Threads(PRODUCERS)
+    public void enqueueContended(Shared shared, Producer p) {
+        Integer key = p.keys[p.cursor++ & (KEY_SPACE - 1)];
+        shared.loader.loadData(key, key, null, p.view);
+    }
+}
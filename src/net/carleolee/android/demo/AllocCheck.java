@@ -0,0 +1,146 @@
+package net.carleolee.android.demo;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Debug;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import net.carleolee.android.util.AsyncLoader;
+import net.carleolee.android.util.HashKey;
+import net.carleolee.android.util.IconAdapter;
+
+/**
+ * Count allocations on the icon bind path once it is warmed up, run from
+ * the test screen. Both numbers should be zero.
+ */
+public class AllocCheck {
+
+    static final int KEYS = 8;
+    static final int ROUNDS = 100;
+
+    public int mBinds;
+    public int mBindAllocs;
+    public int mEnqueues;
+    public int mEnqueueAllocs;
+
+    /** ImageView that only remembers what it is given */
+    static class StubImageView extends ImageView {
+        Bitmap mBitmap;
+        int mResource;
+
+        public StubImageView(Context context) {
+            super(context);
+        }
+
+        @Override
+        public void setImageBitmap(Bitmap bm) {
+            mBitmap = bm;
+        }
+
+        @Override
+        public void setImageResource(int resId) {
+            mResource = resId;
+        }
+    }
+
+    static class CheckAdapter extends IconAdapter<HashKey, Void> {
+        CheckAdapter() {
+            super(false, R.drawable.default_icon, 0);
+        }
+
+        void bind(HashKey key, String url, ImageView image) {
+            bindImage(key, url, null, image);
+        }
+
+        @Override
+        protected Bitmap loadImageLocal(HashKey key, String url, Void extra) {
+            return null;
+        }
+
+        @Override
+        protected Bitmap loadImageRemote(HashKey key, String url, Void extra) {
+            return null;
+        }
+
+        public int getCount() {
+            return 0;
+        }
+
+        public Object getItem(int position) {
+            return null;
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            return convertView;
+        }
+    }
+
+    /**
+     * run the check on current (main) thread.
+     */
+    public void run(Context context) {
+        HashKey[] keys = new HashKey[KEYS];
+        String[] urls = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            urls[i] = "http://localhost/icon/" + i;
+            keys[i] = HashKey.of(urls[i]);
+        }
+        StubImageView image = new StubImageView(context);
+        Bitmap bm = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
+
+        // cache hits on a recycled row
+        CheckAdapter adapter = new CheckAdapter();
+        adapter.onResume();
+        for (int i = 0; i < KEYS; i++)
+            adapter.putImage(keys[i], bm);
+        for (int i = 0; i < KEYS * 2; i++)
+            adapter.bind(keys[i % KEYS], urls[i % KEYS], image);
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int i = 0; i < KEYS; i++)
+                adapter.bind(keys[i], urls[i], image);
+        }
+        mBindAllocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        mBinds = ROUNDS * KEYS;
+        adapter.onDestroy();
+
+        // cache misses queued to a paused loader, recycled by invalidate()
+        AsyncLoader<HashKey, String, Void, ImageView, Bitmap> loader =
+                new AsyncLoader<HashKey, String, Void, ImageView, Bitmap>(
+                new AsyncLoader.LoaderProxy<HashKey, String, Void, ImageView, Bitmap>() {
+            public Bitmap doInBackground(HashKey key, String url, Void extra) {
+                return null;
+            }
+
+            public void onLoaded(HashKey key, String url, Void extra,
+                    ImageView image, Bitmap bm) {
+                // never called, loader is paused
+            }
+        });
+        loader.pause();
+        for (int r = 0; r < 2; r++) {
+            for (int i = 0; i < KEYS; i++)
+                loader.loadData(keys[i], urls[i], null, image);
+            loader.invalidate();
+        }
+        Debug.startAllocCounting();
+        Debug.resetThreadAllocCount();
+        for (int r = 0; r < ROUNDS; r++) {
+            for (int i = 0; i < KEYS; i++)
+                loader.loadData(keys[i], urls[i], null, image);
+            loader.invalidate();
+        }
+        mEnqueueAllocs = Debug.getThreadAllocCount();
+        Debug.stopAllocCounting();
+        mEnqueues = ROUNDS * KEYS;
+        loader.stop();
+    }
+}
@@ -10,21 +10,42 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import java.util.ArrayList;
+import java.util.Set;
 
+import net.carleolee.android.util.EncodedCache;
+import net.carleolee.android.util.GenerationalDir;
+import net.carleolee.android.util.HashKey;
 import net.carleolee.android.util.IconAdapter;
+import net.carleolee.android.util.LoadTracer;
+import net.carleolee.android.util.SharedImageCache;
 
-public class AppAdapter extends IconAdapter<String, Void> {
+public class AppAdapter extends IconAdapter<HashKey, Void> {
+
+    static final String NAMESPACE = "appicon";
+
+    // encoded icons of all lists, slabs are allocated when used
+    static final EncodedCache sEncodedCache = new EncodedCache(2 * 1024 * 1024, false);
 
     LayoutInflater mInflater;
     ArrayList<AppItem> mList;
-    final String mCacheDir;
+    final GenerationalDir mIconDir;
+
+    final GenerationalDir.Listener mInvalidated = new GenerationalDir.Listener() {
+        public void onInvalidated(GenerationalDir dir, int generation) {
+            invalidateImages();
+        }
+    };
 
     public AppAdapter(Context context, ArrayList list) {
         // load local image async; show default icon when loading
         super(true, R.drawable.default_icon, 0);
+        // icons stay in memory when the list is reopened
+        attachSharedCache(SharedImageCache.getInstance(), NAMESPACE);
+        setEncodedCache(sEncodedCache);
         mInflater = LayoutInflater.from(context);
         mList = list;
-        mCacheDir = MiscUtils.getCacheDir(context);
+        mIconDir = MiscUtils.getIconDir(context);
+        mIconDir.addListener(mInvalidated);
     }
 
     @Override
@@ -64,30 +85,110 @@ public class AppAdapter extends IconAdapter<String, Void> {
         String url = item.icon;
         if (url != null && url.length() == 0)
             url = null;
-        if (item.urlhash == null)
-            item.urlhash = MiscUtils.md5Hex(url);
+        if (item.key == null && url != null)
+            item.key = HashKey.of(url);
 
-        bindImage(item.urlhash, url, null, holder.icon);
+        bindImage(item.key, url, null, holder.icon);
 
         return convertView;
     }
 
+    /**
+     * queue icons of a newly arrived page in one batch, top row first.
+     */
+    public void prefetch(ArrayList<AppItem> items) {
+        ArrayList<HashKey> keys = new ArrayList<HashKey>(items.size());
+        ArrayList<String> urls = new ArrayList<String>(items.size());
+        for (AppItem item: items) {
+            String url = item.icon;
+            if (url == null || url.length() == 0)
+                continue;
+            if (item.key == null)
+                item.key = HashKey.of(url);
+            keys.add(item.key);
+            urls.add(url);
+        }
+        prefetchImages(keys, urls, null);
+    }
+
+    /**
+     * start reading icons of the first 'count' items from disk.
+     */
+    public void warmUp(int count) {
+        ArrayList<HashKey> keys = new ArrayList<HashKey>(count);
+        ArrayList<String> urls = new ArrayList<String>(count);
+        for (int i = 0; i < mList.size() && keys.size() < count; i++) {
+            AppItem item = mList.get(i);
+            String url = item.icon;
+            if (url == null || url.length() == 0)
+                continue;
+            if (item.key == null)
+                item.key = HashKey.of(url);
+            keys.add(item.key);
+            urls.add(url);
+        }
+        warmUp(keys, urls, null);
+    }
+
     @Override
-    protected Bitmap loadImageLocal(String urlhash, String url, Void extra) {
-        return MiscUtils.loadIcon(mCacheDir, urlhash);
+    public void onDestroy() {
+        mIconDir.removeListener(mInvalidated);
+        super.onDestroy();
+    }
+
+    /**
+     * drop cached icons on disk and in memory at once, including those of
+     * live lists. Call on main thread.
+     */
+    public static void invalidateIcons(Context context) {
+        // lists alive reload through their listener
+        MiscUtils.getIconDir(context).invalidate();
+        SharedImageCache.getInstance().clear(NAMESPACE);
+        SharedImageCache.getInstance().clear(NAMESPACE + "#preview");
+        sEncodedCache.clear();
+    }
+
+    @Override
+    protected boolean collectItemKeys(Set<HashKey> keys) {
+        for (AppItem item: mList) {
+            if (item.key != null)
+                keys.add(item.key);
+        }
+        return true;
+    }
+
+    @Override
+    protected Bitmap loadImageLocal(HashKey key, String url, Void extra) {
+        String dir = mIconDir.current().getPath();
+        byte[] data = MiscUtils.readIcon(dir, key.toHexString());
+        if (data == null)
+            return null;
+        Bitmap bm = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bm != null) {
+            trace(LoadTracer.DECODED, key, 0);
+            putEncoded(key, data, 0, data.length);
+        }
+        return bm;
     }
 
     @Override
-    protected Bitmap loadImageRemote(String urlhash, String url, Void extra) {
+    protected Bitmap loadImageRemote(HashKey key, String url, Void extra) {
+        // a download outliving an invalidation lands in the old generation
+        String dir = mIconDir.current().getPath();
         try {
             int maxSize = 50 * 1024;
             byte[] buff = new byte[maxSize];
             int n = MiscUtils.downloadIcon(url, buff, maxSize);
             if (n <= 0)
                 return null;
+            trace(LoadTracer.DOWNLOADED, key, n);
             Bitmap bm = BitmapFactory.decodeByteArray(buff, 0, n);
             if (bm != null)
-                MiscUtils.saveIcon(buff, n, mCacheDir, urlhash);
+                trace(LoadTracer.DECODED, key, 0);
+            if (bm != null) {
+                MiscUtils.saveIcon(buff, n, dir, key.toHexString());
+                putEncoded(key, buff, 0, n);
+            }
             return bm;
         } catch (Exception e) {
             return null;
@@ -1,9 +1,12 @@
 package net.carleolee.android.demo;
 
+import net.carleolee.android.util.HashKey;
+
 public class AppItem {
     String icon;
     String title;
     String dev;
 
-    String urlhash;
+    // computed off the main thread when item is parsed or restored
+    HashKey key;
 }
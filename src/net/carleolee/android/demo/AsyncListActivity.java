@@ -5,11 +5,10 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.graphics.Bitmap;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
-import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.Log;
 import android.view.Menu;
 import android.view.MenuInflater;
 import android.view.MenuItem;
@@ -20,43 +19,29 @@ import android.widget.Button;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.io.BufferedInputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.SocketTimeoutException;
-import java.net.URL;
-import java.net.URLConnection;
 import java.util.ArrayList;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.InflaterInputStream;
 
-import org.json.JSONObject;
-import org.json.JSONArray;
+import net.carleolee.android.util.CacheStrategy;
+import net.carleolee.android.util.NetworkPolicy;
+import net.carleolee.android.util.TraceHistogram;
 
 public class AsyncListActivity extends Activity {
 
-    enum TaskState {
-        OK,
-        TIMEOUT,
-        NETWORK_ERROR,
-        ERROR
-    }
-
-    static class TaskResult {
-        TaskState mState;
-        int mTotal;
-        int mOffset;
-        ArrayList<AppItem> mList;
-    }
+    final static String URL_PREFIX = "http://gae.carleolee.net/hotapp?t=json";
 
-    final static String URL_PREFIX = "http://gae.carleolee.net/hotapp?t=json&c=15&o=";
+    final static int PAGE_SIZE = 15;
+    final static int PREFETCH_ROWS = 10;
+    final static int MAX_PAGE_REQUESTS = 2;
+    // icons decoded before the first frame, about one screen
+    final static int WARMUP_ROWS = 12;
 
-    AppTask mTask = null;
-    int mTotal = -1;
+    final PageLoader mPageLoader = new PageLoader();
+    ListPager mPager = null;
+    PageCache mPageCache = null;
     ArrayList<AppItem> mList;
     AppAdapter mAdapter = null;
     ListFooter mFooter;
+    TraceHistogram mTrace = null;
 
     volatile boolean mNetworkUp = true;
     BroadcastReceiver mNetworkStateReceiver = null;
@@ -67,8 +52,22 @@ public class AsyncListActivity extends Activity {
         setContentView(R.layout.list_activity);
 
         mList = new ArrayList<AppItem>();
-        mTask = null;
-        mTotal = -1;
+        mPager = new ListPager(mPageLoader, URL_PREFIX, PAGE_SIZE,
+                PREFETCH_ROWS, MAX_PAGE_REQUESTS, new ListPager.Callback() {
+            public void onItems(ArrayList<AppItem> items) {
+                appendItems(items);
+            }
+
+            public void onPageResult(PageLoader.Result result) {
+                showResult(result);
+            }
+
+            public void onReset() {
+                mList.clear();
+                mAdapter.notifyDataSetChanged();
+            }
+        });
+        mPageCache = new PageCache(getCacheDir(), "pages.dat");
 
         LayoutInflater inflater = LayoutInflater.from(this);
         View footer = inflater.inflate(R.layout.footer, null, false);
@@ -81,9 +80,9 @@ public class AsyncListActivity extends Activity {
         listview.setOnScrollListener(new AbsListView.OnScrollListener() {
             public void onScroll(AbsListView view, int firstVisibleItem,
                                  int visibleItemCount, int totalItemCount) {
-                int last = firstVisibleItem + visibleItemCount;
-                if (totalItemCount > 0 && last == totalItemCount)
-                    loadMore();
+                if (totalItemCount > 0
+                        && mPager.onScroll(firstVisibleItem, visibleItemCount))
+                    updateFooter();
             }
 
             public void onScrollStateChanged(AbsListView view, int scrollState) {
@@ -93,8 +92,8 @@ public class AsyncListActivity extends Activity {
 
         ConnectivityManager manager =
                 (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
-        NetworkInfo info = manager.getActiveNetworkInfo();
-        mNetworkUp = (info != null && info.isAvailable());
+        int networkClass = NetworkPolicy.classify(manager.getActiveNetworkInfo());
+        mNetworkUp = (networkClass != NetworkPolicy.NETWORK_NONE);
         IntentFilter filter = new IntentFilter();
         filter.addAction(ConnectivityManager.CONNECTIVITY_ACTION);
         mNetworkStateReceiver = new BroadcastReceiver() {
@@ -102,14 +101,29 @@ public class AsyncListActivity extends Activity {
                 if (intent.getAction().equals(ConnectivityManager.CONNECTIVITY_ACTION)) {
                     NetworkInfo info = intent.getParcelableExtra(
                             ConnectivityManager.EXTRA_NETWORK_INFO);
-                    onNetworkToggle(info != null && info.isAvailable());
+                    onNetworkChanged(NetworkPolicy.classify(info));
                 }
             }
         };
         registerReceiver(mNetworkStateReceiver, filter);
 
-        mAdapter.setNetworkStatus(mNetworkUp);
-        loadMore();
+        // smaller icons, fewer connections and no prefetch when metered
+        mAdapter.setNetworkClass(networkClass);
+
+        // the snapshot is small, read it here so cached rows make the
+        // first frame; the pager revalidates it in background
+        PageCache.Snapshot snapshot = mPageCache.load();
+        if (snapshot != null && snapshot.mList.size() > 0) {
+            mList.addAll(snapshot.mList);
+            mAdapter.notifyDataSetChanged();
+            // start decoding the first screen of icons before the first
+            // layout, after the notify above which discards loader tasks
+            mAdapter.warmUp(WARMUP_ROWS);
+            mPager.restore(snapshot.mList, snapshot.mTotal);
+            updateFooter();
+        } else {
+            loadMore();
+        }
     }
 
     @Override
@@ -117,6 +131,23 @@ public class AsyncListActivity extends Activity {
         super.onStop();
         if (mAdapter != null)
             mAdapter.onStop();
+        if (mPager != null && mPager.getTotal() >= 0 && mList.size() > 0)
+            mPageCache.saveAsync(mList, mPager.getTotal());
+    }
+
+    @Override
+    public void onLowMemory() {
+        super.onLowMemory();
+        if (mAdapter != null)
+            mAdapter.trimMemory(CacheStrategy.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * called on API level 14 and above.
+     */
+    public void onTrimMemory(int level) {
+        if (mAdapter != null)
+            mAdapter.trimMemory(level);
     }
 
     @Override
@@ -130,9 +161,8 @@ public class AsyncListActivity extends Activity {
     protected void onDestroy() {
         if (mAdapter != null)
             mAdapter.onDestroy();
-        if (mTask != null) {
-            mTask.cancel(true);
-        }
+        if (mPager != null)
+            mPager.stop();
         if (mNetworkStateReceiver != null) {
             unregisterReceiver(mNetworkStateReceiver);
             mNetworkStateReceiver = null;
@@ -152,6 +182,8 @@ public class AsyncListActivity extends Activity {
     public boolean onPrepareOptionsMenu(Menu menu) {
         if (!super.onPrepareOptionsMenu(menu))
             return false;
+        menu.findItem(R.id.menu_trace).setTitle(mTrace == null
+                ? R.string.menu_trace : R.string.menu_trace_stop);
         return true;
     }
 
@@ -166,47 +198,61 @@ public class AsyncListActivity extends Activity {
             i.putExtra("test", true);
             startActivity(i);
             return true;
+        case R.id.menu_trace:
+            toggleTrace();
+            return true;
         default:
             return super.onOptionsItemSelected(item);
         }
     }
 
-    void onNetworkToggle(boolean available) {
-        mNetworkUp = available;
+    /**
+     * start tracing icon requests, or stop and log the histograms.
+     */
+    void toggleTrace() {
+        if (mAdapter == null)
+            return;
+        if (mTrace == null) {
+            mTrace = new TraceHistogram();
+            mAdapter.setTracer(mTrace);
+        } else {
+            mAdapter.setTracer(null);
+            Log.i("IconTrace", mTrace.toJson());
+            mTrace = null;
+        }
+    }
+
+    void onNetworkChanged(int networkClass) {
+        mNetworkUp = (networkClass != NetworkPolicy.NETWORK_NONE);
         if (mAdapter != null)
-            mAdapter.setNetworkStatus(mNetworkUp);
+            mAdapter.setNetworkClass(networkClass);
     }
 
     void refresh() {
-        if (mTask != null) {
-            // refreshing, just return
-            if (mList.size() == 0)
-                return;
-            mTask.cancel(true);
-            mTask = null;
-        }
+        // refreshing, just return
+        if (mPager.isLoading() && mList.size() == 0)
+            return;
+        mPager.reset();
+        mList.clear();
         if (mAdapter != null)
             mAdapter.notifyDataSetChanged();
 
-        mList.clear();
         loadMore();
     }
 
     void loadMore() {
-        if (mTotal != -1 && mList.size() >= mTotal) {
-            mFooter.hide();
-            return;
-        }
-        if (mTask != null)
-            return;
+        mPager.loadMore();
+        updateFooter();
+    }
 
-        mFooter.showLoading();
-        String url = URL_PREFIX + mList.size();
-        mTask = new AppTask();
-        mTask.execute(url);
+    void updateFooter() {
+        if (mPager.isLoading())
+            mFooter.showLoading();
+        else if (mPager.isComplete())
+            mFooter.hide();
     }
 
-    void showResult(TaskResult result) {
+    void showResult(PageLoader.Result result) {
         switch (result.mState) {
         case TIMEOUT:
             if (mNetworkUp)
@@ -221,14 +267,10 @@ public class AsyncListActivity extends Activity {
                 mFooter.showNoConnection();
             break;
         case OK:
-            mFooter.hide();
-            mTotal = result.mTotal;
-            if (mTotal < 0)
-                mTotal = 0;
-            if (result.mList != null && result.mList.size() > 0) {
-                mList.addAll(result.mList);
-                mAdapter.notifyDataSetChanged();
-            }
+            if (mPager.isLoading())
+                mFooter.showLoading();
+            else
+                mFooter.hide();
             break;
         default:
             mFooter.showError();
@@ -236,124 +278,12 @@ public class AsyncListActivity extends Activity {
         }
     }
 
-    TaskResult loadAppList(String urlstr) {
-        TaskResult result = new TaskResult();
-        HttpURLConnection conn = null;
-        try {
-            URL url = new URL(urlstr);
-            URLConnection connection = url.openConnection();
-            if (!(connection instanceof HttpURLConnection)) {
-                result.mState = TaskState.ERROR;
-                return result;
-            }
-            conn = (HttpURLConnection) connection;
-            conn.setConnectTimeout(5000);
-            conn.setReadTimeout(10000);
-            conn.setInstanceFollowRedirects(true);
-            conn.setRequestProperty("Accept-Encoding", "gzip,deflate");
-            conn.connect();
-            InputStream in = null;
-            in = new BufferedInputStream(conn.getInputStream(), 8 * 1024);
-            String encoding = conn.getContentEncoding();
-            if ("gzip".equalsIgnoreCase(encoding)) {
-                in = new GZIPInputStream(in);
-            } else if ("deflate".equalsIgnoreCase(encoding)) {
-                in = new InflaterInputStream(in);
-            }
-            int size = 64 * 1024;
-            byte[] buff = new byte[size];
-            int off = 0;
-            int len = size;
-            while (len > 0) {
-                int count = in.read(buff, off, len);
-                if (count == -1) {
-                    break;
-                } else if (count == 0) {
-                    throw new IOException("read time out");
-                } else {
-                    off += count;
-                    len -= count;
-                    if (len <= 0) {
-                        throw new Exception("result too long");
-                    }
-                }
-            }
-            in.close();
-            if (off == 0) {
-                throw new Exception("empty result");
-            }
-            String data = new String(buff, 0, off, "UTF-8");
-            JSONObject message = new JSONObject(data);
-            String status = message.getString("result");
-            if (!"ok".equals(status)) {
-                result.mState = TaskState.ERROR;
-                return result;
-            }
-            result.mTotal = message.getInt("total");
-            if (result.mTotal <= 0) {
-                result.mState = TaskState.OK;
-                return result;
-            }
-            result.mOffset = message.getInt("offset");
-            if (result.mOffset < 0) {
-                result.mState = TaskState.ERROR;
-                return result;
-            }
-            if (!message.isNull("data")) {
-                JSONArray array = message.getJSONArray("data");
-                int length = array.length();
-                ArrayList<AppItem> list = new ArrayList<AppItem>(length);
-                for (int i = 0; i < length; i++) {
-                    JSONObject o = array.getJSONObject(i);
-                    AppItem item = new AppItem();
-                    item.icon = o.getString("icon");
-                    item.title = o.getString("title");
-                    item.dev = o.getString("dev");
-                    list.add(item);
-                }
-                result.mList = list;
-            }
-            result.mState = TaskState.OK;
-            return result;
-        } catch (SocketTimeoutException e1) {
-            result.mState = TaskState.TIMEOUT;
-            return result;
-        } catch (IOException e2) {
-            result.mState = TaskState.NETWORK_ERROR;
-            return result;
-        } catch (Exception e) {
-            //
-        } finally {
-            if (conn != null) {
-                try {
-                    conn.disconnect();
-                } catch (Exception e4) {
-                    // ignore
-                }
-            }
-        }
-        result.mState = TaskState.ERROR;
-        return result;
-    }
-
-
-    class AppTask extends AsyncTask<String, Void, TaskResult> {
-        @Override
-        protected TaskResult doInBackground(String... params) {
-            if (params.length != 1)
-                throw new IllegalArgumentException("AppTask accept only one param");
-            return loadAppList(params[0]);
-        }
-
-        @Override
-        protected void onPostExecute(TaskResult result) {
-            if (this.isCancelled() || result == null)
-                return;
-            if (mTask == this) {
-                mTask = null;
-                showResult(result);
-            }
-        }
+    void appendItems(ArrayList<AppItem> items) {
+        if (items.size() == 0)
+            return;
+        mList.addAll(items);
+        mAdapter.notifyItemsAppended(items.size());
+        mAdapter.prefetch(items);
     }
 
     class ListFooter {
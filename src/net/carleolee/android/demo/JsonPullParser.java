@@ -0,0 +1,370 @@
+package net.carleolee.android.demo;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.json.JSONException;
+
+/**
+ * Minimal streaming JSON parser in the style of XmlPullParser. It reads UTF-8
+ * bytes straight off the input stream, so there is no limit on document
+ * size. Byte buffer and text buffer are reused across documents; call
+ * {@link #setInput} to parse another one with the same instance.
+ * Note that this implementation is not synchronized.
+ */
+public class JsonPullParser {
+
+    public static final int END_DOCUMENT = 0;
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int BEGIN_ARRAY = 3;
+    public static final int END_ARRAY = 4;
+    public static final int NAME = 5;
+    public static final int STRING = 6;
+    public static final int NUMBER = 7;
+    public static final int BOOLEAN = 8;
+    public static final int NULL = 9;
+
+    // scopes kept on the nesting stack
+    private static final int EMPTY_DOCUMENT = 0;
+    private static final int NONEMPTY_DOCUMENT = 1;
+    private static final int EMPTY_OBJECT = 2;
+    private static final int DANGLING_NAME = 3;
+    private static final int NONEMPTY_OBJECT = 4;
+    private static final int EMPTY_ARRAY = 5;
+    private static final int NONEMPTY_ARRAY = 6;
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    private final byte[] mBuff;
+    private int mPos;
+    private int mLimit;
+    private InputStream mIn;
+
+    private final StringBuilder mText = new StringBuilder(64);
+    private boolean mBoolean;
+
+    private int[] mStack = new int[16];
+    private int mDepth;
+
+    public JsonPullParser() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public JsonPullParser(int bufferSize) {
+        if (bufferSize < 16)
+            throw new IllegalArgumentException("bufferSize too small");
+        mBuff = new byte[bufferSize];
+    }
+
+    /**
+     * start parsing a new document. Buffers of previous document are reused.
+     */
+    public void setInput(InputStream in) {
+        mIn = in;
+        mPos = 0;
+        mLimit = 0;
+        mText.setLength(0);
+        mDepth = 1;
+        mStack[0] = EMPTY_DOCUMENT;
+    }
+
+    /**
+     * drop reference to the input stream, the stream is not closed.
+     */
+    public void release() {
+        mIn = null;
+    }
+
+    /** current nesting depth, 0 at top level. */
+    public int getDepth() {
+        return mDepth - 1;
+    }
+
+    /** text of current NAME, STRING or NUMBER token. */
+    public String getText() {
+        return mText.toString();
+    }
+
+    /** compare text of current token with given string without allocation. */
+    public boolean textEquals(String str) {
+        int len = mText.length();
+        if (len != str.length())
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (mText.charAt(i) != str.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /** value of current BOOLEAN token. */
+    public boolean getBoolean() {
+        return mBoolean;
+    }
+
+    /** value of current NUMBER token as int. */
+    public int getInt() throws JSONException {
+        int len = mText.length();
+        int i = 0;
+        boolean negative = false;
+        if (len > 0 && mText.charAt(0) == '-') {
+            negative = true;
+            i = 1;
+        }
+        if (i >= len || len - i > 9)
+            return (int) parseDouble();
+        int v = 0;
+        for (; i < len; i++) {
+            char c = mText.charAt(i);
+            if (c < '0' || c > '9')
+                return (int) parseDouble();
+            v = v * 10 + (c - '0');
+        }
+        return negative ? -v : v;
+    }
+
+    private double parseDouble() throws JSONException {
+        try {
+            return Double.parseDouble(mText.toString());
+        } catch (NumberFormatException e) {
+            throw new JSONException("bad number: " + mText);
+        }
+    }
+
+    /**
+     * read next token.
+     */
+    public int next() throws IOException, JSONException {
+        int c = nextNonWhitespace();
+        switch (mStack[mDepth - 1]) {
+        case EMPTY_DOCUMENT:
+            mStack[mDepth - 1] = NONEMPTY_DOCUMENT;
+            break;
+        case NONEMPTY_DOCUMENT:
+            if (c == -1)
+                return END_DOCUMENT;
+            throw syntaxError("trailing data");
+        case EMPTY_ARRAY:
+            if (c == ']') {
+                mDepth--;
+                return END_ARRAY;
+            }
+            mStack[mDepth - 1] = NONEMPTY_ARRAY;
+            break;
+        case NONEMPTY_ARRAY:
+            if (c == ']') {
+                mDepth--;
+                return END_ARRAY;
+            }
+            if (c != ',')
+                throw syntaxError("expect ',' or ']'");
+            c = nextNonWhitespace();
+            break;
+        case EMPTY_OBJECT:
+        case NONEMPTY_OBJECT:
+            if (c == '}') {
+                mDepth--;
+                return END_OBJECT;
+            }
+            if (mStack[mDepth - 1] == NONEMPTY_OBJECT) {
+                if (c != ',')
+                    throw syntaxError("expect ',' or '}'");
+                c = nextNonWhitespace();
+            }
+            if (c != '"')
+                throw syntaxError("expect name");
+            readString();
+            if (nextNonWhitespace() != ':')
+                throw syntaxError("expect ':'");
+            mStack[mDepth - 1] = DANGLING_NAME;
+            return NAME;
+        case DANGLING_NAME:
+            mStack[mDepth - 1] = NONEMPTY_OBJECT;
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+        return readValue(c);
+    }
+
+    /**
+     * skip the value following current NAME token, or the rest of the
+     * object or array just begun.
+     */
+    public void skipValue() throws IOException, JSONException {
+        int depth = 0;
+        do {
+            int token = next();
+            if (token == BEGIN_OBJECT || token == BEGIN_ARRAY)
+                depth++;
+            else if (token == END_OBJECT || token == END_ARRAY)
+                depth--;
+            else if (token == END_DOCUMENT)
+                throw syntaxError("unexpected end");
+        } while (depth > 0);
+    }
+
+    private int readValue(int c) throws IOException, JSONException {
+        switch (c) {
+        case '{':
+            push(EMPTY_OBJECT);
+            return BEGIN_OBJECT;
+        case '[':
+            push(EMPTY_ARRAY);
+            return BEGIN_ARRAY;
+        case '"':
+            readString();
+            return STRING;
+        case 't':
+            expectLiteral("rue");
+            mBoolean = true;
+            return BOOLEAN;
+        case 'f':
+            expectLiteral("alse");
+            mBoolean = false;
+            return BOOLEAN;
+        case 'n':
+            expectLiteral("ull");
+            return NULL;
+        case -1:
+            throw syntaxError("unexpected end");
+        default:
+            if (c == '-' || (c >= '0' && c <= '9')) {
+                readNumber(c);
+                return NUMBER;
+            }
+            throw syntaxError("unexpected character");
+        }
+    }
+
+    private void push(int scope) {
+        if (mDepth == mStack.length) {
+            int[] stack = new int[mDepth * 2];
+            System.arraycopy(mStack, 0, stack, 0, mDepth);
+            mStack = stack;
+        }
+        mStack[mDepth++] = scope;
+    }
+
+    private boolean fill() throws IOException {
+        if (mIn == null)
+            return false;
+        int count = mIn.read(mBuff, 0, mBuff.length);
+        if (count == -1)
+            return false;
+        else if (count == 0)
+            throw new IOException("read time out");
+        mPos = 0;
+        mLimit = count;
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (mPos == mLimit && !fill())
+            return -1;
+        return mBuff[mPos++] & 0xff;
+    }
+
+    private int peek() throws IOException {
+        if (mPos == mLimit && !fill())
+            return -1;
+        return mBuff[mPos] & 0xff;
+    }
+
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            int c = read();
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t')
+                return c;
+        }
+    }
+
+    private void expectLiteral(String rest) throws IOException, JSONException {
+        for (int i = 0; i < rest.length(); i++) {
+            if (read() != rest.charAt(i))
+                throw syntaxError("bad literal");
+        }
+    }
+
+    private void readNumber(int c) throws IOException {
+        mText.setLength(0);
+        mText.append((char) c);
+        while (true) {
+            c = peek();
+            if ((c >= '0' && c <= '9') || c == '.' || c == 'e' || c == 'E'
+                    || c == '+' || c == '-') {
+                mText.append((char) c);
+                mPos++;
+            } else {
+                break;
+            }
+        }
+    }
+
+    private int continuation() throws IOException, JSONException {
+        int c = read();
+        if ((c & 0xc0) != 0x80)
+            throw syntaxError("bad UTF-8 sequence");
+        return c & 0x3f;
+    }
+
+    private void readString() throws IOException, JSONException {
+        StringBuilder text = mText;
+        text.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c == -1) {
+                throw syntaxError("unterminated string");
+            } else if (c < 0x80) {
+                text.append((char) c);
+            } else if (c < 0xe0) {
+                text.append((char) (((c & 0x1f) << 6) | continuation()));
+            } else if (c < 0xf0) {
+                int v = ((c & 0x0f) << 12) | (continuation() << 6);
+                text.append((char) (v | continuation()));
+            } else {
+                int v = ((c & 0x07) << 18) | (continuation() << 12);
+                v |= continuation() << 6;
+                v = (v | continuation()) - 0x10000;
+                text.append((char) (0xd800 | (v >> 10)));
+                text.append((char) (0xdc00 | (v & 0x3ff)));
+            }
+        }
+    }
+
+    private void readEscape() throws IOException, JSONException {
+        int c = read();
+        switch (c) {
+        case 'n': mText.append('\n'); break;
+        case 't': mText.append('\t'); break;
+        case 'r': mText.append('\r'); break;
+        case 'b': mText.append('\b'); break;
+        case 'f': mText.append('\f'); break;
+        case 'u':
+            int v = 0;
+            for (int i = 0; i < 4; i++) {
+                int d = Character.digit(read(), 16);
+                if (d < 0)
+                    throw syntaxError("bad unicode escape");
+                v = (v << 4) | d;
+            }
+            mText.append((char) v);
+            break;
+        case -1:
+            throw syntaxError("unterminated string");
+        default:
+            // '"', '\\', '/' and anything else stand for themselves
+            mText.append((char) c);
+            break;
+        }
+    }
+
+    private JSONException syntaxError(String msg) {
+        return new JSONException(msg + " at depth " + getDepth());
+    }
+}
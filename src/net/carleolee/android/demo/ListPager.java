@@ -0,0 +1,370 @@
+package net.carleolee.android.demo;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import android.os.Handler;
+
+/**
+ * Page list data ahead of scroll position. Next page is requested once the
+ * user gets within 'prefetch' rows of the end, and up to 'maxRequests' pages
+ * can be in flight during a fast fling. Items are always delivered in list
+ * order no matter in which order the responses arrive.
+ * All public methods must be called on main thread.
+ */
+public class ListPager {
+
+    public interface Callback {
+        /**
+         * called on main thread with items to append, in list order.
+         */
+        public void onItems(ArrayList<AppItem> items);
+
+        /**
+         * called on main thread after all items of a page are delivered.
+         * If the page failed, pages requested after it are discarded.
+         */
+        public void onPageResult(PageLoader.Result result);
+
+        /**
+         * called on main thread when restored items turn out to be stale.
+         * All items delivered so far should be dropped, fresh ones follow.
+         */
+        public void onReset();
+    }
+
+    public final static int DEFAULT_PAGE_SIZE = 15;
+    public final static int DEFAULT_PREFETCH = 10;
+    public final static int DEFAULT_REQUESTS = 2;
+
+    class PageRequest implements Runnable, PageLoader.Listener {
+        final int mOffset;
+        final String mUrl;
+        final boolean mValidate;
+        Future<?> mFuture;
+        volatile boolean mCancelled;
+
+        // accessed on main thread only
+        ArrayList<AppItem> mPending;
+        PageLoader.Result mResult;
+
+        PageRequest(int offset, String url, boolean validate) {
+            mOffset = offset;
+            mUrl = url;
+            mValidate = validate;
+        }
+
+        public void run() {
+            if (mCancelled)
+                return;
+            final PageLoader.Result result = mLoader.load(mUrl,
+                    mValidate ? null : this);
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mCancelled)
+                        return;
+                    mResult = result;
+                    if (mValidate)
+                        onValidated(PageRequest.this);
+                    else
+                        drain();
+                }
+            });
+        }
+
+        @Override
+        public void onItems(final ArrayList<AppItem> items) {
+            mHandler.post(new Runnable() {
+                public void run() {
+                    if (mCancelled)
+                        return;
+                    if (mPending == null)
+                        mPending = items;
+                    else
+                        mPending.addAll(items);
+                    drain();
+                }
+            });
+        }
+
+        void cancel() {
+            mCancelled = true;
+            if (mFuture != null)
+                mFuture.cancel(true);
+        }
+    }
+
+    private final PageLoader mLoader;
+    private final String mUrlPrefix;
+    private final int mPageSize;
+    private final int mPrefetch;
+    private final int mMaxRequests;
+    private final Callback mCallback;
+    private final Handler mHandler;
+    private ExecutorService mExecutor;
+
+    // requests in flight, ordered by offset
+    private final ArrayList<PageRequest> mRequests = new ArrayList<PageRequest>();
+    // revalidation of restored items, one request per restored page
+    private final ArrayList<PageRequest> mValidations = new ArrayList<PageRequest>();
+    private ArrayList<AppItem> mRestored;
+    private int mLoaded;
+    private int mRequested;
+    private int mTotal;
+    private int mLastVisible;
+    private boolean mFailed;
+    private boolean mStoped;
+
+    public ListPager(PageLoader loader, String urlPrefix, Callback callback) {
+        this(loader, urlPrefix, DEFAULT_PAGE_SIZE, DEFAULT_PREFETCH,
+                DEFAULT_REQUESTS, callback);
+    }
+
+    /**
+     * @param loader page loader
+     * @param urlPrefix url without page size and offset parameter
+     * @param pageSize number of items per page
+     * @param prefetch request next page when this many rows are left
+     * @param maxRequests max number of pages in flight
+     * @param callback callback
+     */
+    public ListPager(PageLoader loader, String urlPrefix, int pageSize,
+            int prefetch, int maxRequests, Callback callback) {
+        if (pageSize < 1)
+            throw new IllegalArgumentException("pageSize must be positive");
+        if (maxRequests < 1)
+            throw new IllegalArgumentException("maxRequests must be positive");
+        mLoader = loader;
+        mUrlPrefix = urlPrefix;
+        mPageSize = pageSize;
+        mPrefetch = prefetch < 0 ? 0 : prefetch;
+        mMaxRequests = maxRequests;
+        mCallback = callback;
+        mHandler = new Handler();
+        mTotal = -1;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /** total number of items, -1 if unknown yet. */
+    public int getTotal() {
+        return mTotal;
+    }
+
+    /** number of items delivered. */
+    public int getLoaded() {
+        return mLoaded;
+    }
+
+    /** whether there is any page in flight. */
+    public boolean isLoading() {
+        return mRequests.size() > 0;
+    }
+
+    /** whether all items are requested. */
+    public boolean isComplete() {
+        return mTotal >= 0 && mRequested >= mTotal;
+    }
+
+    /**
+     * track scroll position and prefetch if needed, return true if a new
+     * page is requested. Prefetching stays suspended after a failed page
+     * until {@link #loadMore} is called.
+     */
+    public boolean onScroll(int firstVisibleItem, int visibleItemCount) {
+        mLastVisible = firstVisibleItem + visibleItemCount;
+        if (mFailed)
+            return false;
+        int n = mRequests.size();
+        prefetch();
+        return mRequests.size() > n;
+    }
+
+    /**
+     * make sure next page is loading, typically called at start and by
+     * retry button.
+     */
+    public void loadMore() {
+        mFailed = false;
+        if (mRequests.size() == 0 && !isComplete())
+            request();
+        prefetch();
+    }
+
+    /**
+     * start with items restored from a previous run, which the caller has
+     * shown already. Every restored page is fetched again in background;
+     * if one differs, {@link Callback#onReset} is called and paging starts
+     * over, with the fresh page if it is the first one.
+     */
+    public void restore(ArrayList<AppItem> items, int total) {
+        reset();
+        mLoaded = items.size();
+        mRequested = mLoaded;
+        mTotal = total < 0 ? 0 : total;
+        mRestored = new ArrayList<AppItem>(items);
+        for (int offset = 0; offset < mLoaded; offset += mPageSize)
+            mValidations.add(newRequest(offset, true));
+    }
+
+    /**
+     * discard loaded state and pending pages.
+     */
+    public void reset() {
+        cancelAll();
+        cancelValidations();
+        mLoaded = 0;
+        mRequested = 0;
+        mTotal = -1;
+        mLastVisible = 0;
+        mFailed = false;
+    }
+
+    /**
+     * discard pending pages and stop worker threads.
+     */
+    public void stop() {
+        reset();
+        mStoped = true;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void prefetch() {
+        while (mRequests.size() < mMaxRequests && !isComplete()
+                && mRequested < mLastVisible + mPrefetch)
+            request();
+    }
+
+    private void request() {
+        int offset = mRequested;
+        mRequested += mPageSize;
+        mRequests.add(newRequest(offset, false));
+    }
+
+    private PageRequest newRequest(int offset, boolean validate) {
+        if (mStoped)
+            throw new IllegalStateException("This pager is stoped already");
+        if (mExecutor == null)
+            mExecutor = Executors.newFixedThreadPool(mMaxRequests);
+        PageRequest req = new PageRequest(offset,
+                mUrlPrefix + "&c=" + mPageSize + "&o=" + offset, validate);
+        req.mFuture = mExecutor.submit(req);
+        return req;
+    }
+
+    private void cancelAll() {
+        for (PageRequest req: mRequests)
+            req.cancel();
+        mRequests.clear();
+    }
+
+    private void cancelValidations() {
+        for (PageRequest req: mValidations)
+            req.cancel();
+        mValidations.clear();
+        mRestored = null;
+    }
+
+    /**
+     * deliver whatever the head page has, then move to following pages
+     * once it is finished.
+     */
+    private void drain() {
+        while (mRequests.size() > 0) {
+            PageRequest head = mRequests.get(0);
+            if (head.mPending != null) {
+                ArrayList<AppItem> items = head.mPending;
+                head.mPending = null;
+                mLoaded += items.size();
+                mCallback.onItems(items);
+            }
+            PageLoader.Result result = head.mResult;
+            if (result == null)
+                break;
+            mRequests.remove(0);
+            if (result.mState == PageLoader.State.OK) {
+                mTotal = result.mTotal < 0 ? 0 : result.mTotal;
+                if (result.mList != null && result.mList.size() > 0) {
+                    mLoaded += result.mList.size();
+                    mCallback.onItems(result.mList);
+                }
+                // a short page shifts the offsets of following pages
+                if (mLoaded != head.mOffset + mPageSize && mLoaded < mTotal)
+                    resync();
+            } else {
+                mFailed = true;
+                resync();
+            }
+            mCallback.onPageResult(result);
+        }
+        if (!mFailed)
+            prefetch();
+    }
+
+    private void onValidated(PageRequest req) {
+        ArrayList<AppItem> restored = mRestored;
+        mValidations.remove(req);
+        if (mValidations.size() == 0)
+            mRestored = null;
+        PageLoader.Result result = req.mResult;
+        // keep stale items if we could not check them
+        if (result.mState != PageLoader.State.OK)
+            return;
+        int total = result.mTotal < 0 ? 0 : result.mTotal;
+        ArrayList<AppItem> list = result.mList;
+        int count = list == null ? 0 : list.size();
+        int end = Math.min(req.mOffset + mPageSize, restored.size());
+        if (total == mTotal && sameItems(restored, req.mOffset, end, list, count))
+            return;
+
+        cancelAll();
+        cancelValidations();
+        mTotal = total;
+        mCallback.onReset();
+        if (req.mOffset != 0) {
+            // items before this page are not known fresh, start over
+            mLoaded = 0;
+            mRequested = 0;
+            loadMore();
+            return;
+        }
+        mLoaded = count;
+        mRequested = mPageSize;
+        if (count > 0)
+            mCallback.onItems(list);
+        if (mLoaded != mPageSize && mLoaded < mTotal)
+            resync();
+        mCallback.onPageResult(result);
+        if (!mFailed)
+            prefetch();
+    }
+
+    /**
+     * whether restored items [from, to) match the fresh page. The last
+     * restored page may be cut short by the snapshot limit, so only its
+     * restored part is compared.
+     */
+    private static boolean sameItems(ArrayList<AppItem> restored, int from,
+            int to, ArrayList<AppItem> fresh, int count) {
+        int n = to - from;
+        if (n > count || (n < count && to < restored.size()))
+            return false;
+        for (int i = 0; i < n; i++) {
+            if (!PageCache.sameItem(restored.get(from + i), fresh.get(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private void resync() {
+        cancelAll();
+        mRequested = mLoaded;
+    }
+}
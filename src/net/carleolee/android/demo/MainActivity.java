@@ -1,22 +1,22 @@
 package net.carleolee.android.demo;
 
 import android.app.Activity;
-import android.app.ProgressDialog;
 import android.content.Intent;
 import android.os.Bundle;
-import android.os.AsyncTask;
 import android.view.View;
 import android.widget.Button;
+import android.util.Log;
+import android.widget.TextView;
 
-public class MainActivity extends Activity {
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 
-    ProgressDialog mProgressDlg = null;
-    String mCacheDir;
+public class MainActivity extends Activity {
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
-        mCacheDir = MiscUtils.getCacheDir(this);
 
         setContentView(R.layout.main);
         Button b = (Button) findViewById(R.id.clear_btn);
@@ -31,6 +31,20 @@ public class MainActivity extends Activity {
         if (test) {
             setTitle(R.string.title_test);
             b.setVisibility(View.GONE);
+            b = (Button) findViewById(R.id.alloc_btn);
+            b.setVisibility(View.VISIBLE);
+            b.setOnClickListener(new View.OnClickListener() {
+                public void onClick(View v) {
+                    checkAllocations();
+                }
+            });
+            b = (Button) findViewById(R.id.replay_btn);
+            b.setVisibility(View.VISIBLE);
+            b.setOnClickListener(new View.OnClickListener() {
+                public void onClick(View v) {
+                    replayTrace(v);
+                }
+            });
             return;
         }
 
@@ -47,34 +61,70 @@ public class MainActivity extends Activity {
         startActivity(intent);
     }
 
-    void clearCache() {
-        if (mProgressDlg == null) {
-            mProgressDlg = new ProgressDialog(this);
-            mProgressDlg.setProgressStyle(ProgressDialog.STYLE_SPINNER);
-            mProgressDlg.setMax(100);
-            mProgressDlg.setCancelable(false);
-            mProgressDlg.setMessage(getString(R.string.wait));
-        }
-        mProgressDlg.show();
-        MyTask task = new MyTask();
-        task.execute(mCacheDir);
+    void checkAllocations() {
+        AllocCheck check = new AllocCheck();
+        check.run(this);
+        TextView text = (TextView) findViewById(R.id.check_result);
+        text.setText(getString(R.string.alloc_result, check.mBindAllocs,
+                check.mBinds, check.mEnqueueAllocs, check.mEnqueues));
     }
 
-    class MyTask extends AsyncTask<String, Void, Void> {
-
-        @Override
-        protected Void doInBackground(String... params) {
-            if (params.length != 1)
-                return null;
-            String dir = params[0];
-            MiscUtils.clearCache(dir);
-            return null;
+    /**
+     * replay <cache dir>/trace.txt if present, a synthetic trace otherwise,
+     * against a stub server with 150 ms latency, 32 KB/s and 5% failures.
+     */
+    void replayTrace(final View button) {
+        final TextView text = (TextView) findViewById(R.id.check_result);
+        ScrollTrace trace = null;
+        File file = new File(getCacheDir(), "trace.txt");
+        if (file.exists()) {
+            FileReader in = null;
+            try {
+                in = new FileReader(file);
+                trace = ScrollTrace.parse(in);
+            } catch (IOException e) {
+                text.setText(e.toString());
+                return;
+            } finally {
+                if (in != null) {
+                    try {
+                        in.close();
+                    } catch (Exception e) {
+                        // ignore
+                    }
+                }
+            }
+        } else {
+            trace = ScrollTrace.synthetic(120, 8, 1);
         }
 
-        protected void onPostExecute(Void result) {
-            if (mProgressDlg != null)
-                mProgressDlg.dismiss();
+        final StubImageServer server = new StubImageServer(
+                ReplayHarness.makeIcon(48), 150, 32 * 1024, 0.05f, 1);
+        try {
+            server.start();
+        } catch (IOException e) {
+            text.setText(e.toString());
+            return;
         }
+        button.setEnabled(false);
+        text.setText(R.string.replay_running);
+        ReplayHarness harness = new ReplayHarness(this, trace, server.getUrlPrefix());
+        harness.start(new ReplayHarness.Listener() {
+            public void onFinished(ReplayHarness h) {
+                server.stop();
+                String result = h.toJson();
+                Log.i("ReplayHarness", result);
+                text.setText(result);
+                button.setEnabled(true);
+            }
+        });
+    }
+
+    /**
+     * invalidate icon cache, old files are removed in background.
+     */
+    void clearCache() {
+        AppAdapter.invalidateIcons(this);
     }
 
 }
@@ -2,6 +2,7 @@ package net.carleolee.android.demo;
 
 import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -12,10 +13,10 @@ import java.net.URLConnection;
 import java.security.MessageDigest;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Environment;
 
+import net.carleolee.android.util.GenerationalDir;
+
 /**
  * Digest utility
  */
@@ -26,6 +27,8 @@ public class MiscUtils {
         'a','b','c','d','e','f'
     };
 
+    private static GenerationalDir sIconDir;
+
     /** get hex string of specified bytes */
     public static String toHexString(byte[] bytes, int off, int len) {
         if (bytes == null)
@@ -109,15 +112,38 @@ public class MiscUtils {
         return false;
     }
 
-    public static Bitmap loadIcon(String dir, String name) {
+    /**
+     * encoded bytes of a cached icon, or null.
+     */
+    public static byte[] readIcon(String dir, String name) {
         if (!isSdcardAvailable())
             return null;
+        FileInputStream in = null;
         try {
-            String fname = dir + "/" + name + ".dat";
-            Bitmap bm = BitmapFactory.decodeFile(fname);
-            return bm;
+            File file = new File(dir + "/" + name + ".dat");
+            int length = (int) file.length();
+            if (length <= 0)
+                return null;
+            byte[] data = new byte[length];
+            in = new FileInputStream(file);
+            int n = 0;
+            while (n < length) {
+                int r = in.read(data, n, length - n);
+                if (r < 0)
+                    return null;
+                n += r;
+            }
+            return data;
         } catch (Exception e) {
             return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
         }
     }
 
@@ -172,23 +198,15 @@ public class MiscUtils {
         }
     }
 
-    public static void clearCache(String dir) {
-        if (!isSdcardAvailable())
-            return;
-        try {
-            File d = new File(dir);
-            if (!d.exists() || !d.isDirectory())
-                return;
-            File[] list = d.listFiles();
-            if (list == null || list.length == 0)
-                return;
-            for (File file: list) {
-                if (file.isFile()) {
-                    file.delete();
-                }
-            }
-        } catch (Exception e) {
-            // ignore
+    /**
+     * icon cache directory of the process, invalidated by generation.
+     */
+    public static synchronized GenerationalDir getIconDir(Context context) {
+        if (sIconDir == null) {
+            sIconDir = new GenerationalDir(new File(getCacheDir(context)));
+            // leftovers of an interrupted reclaim or of late downloads
+            sIconDir.reclaimAsync();
         }
+        return sIconDir;
     }
 }
@@ -0,0 +1,191 @@
+package net.carleolee.android.demo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import net.carleolee.android.util.HashKey;
+
+/**
+ * Persist loaded list pages in a compact binary file so that next launch
+ * can show them at once, before the network answers. Item keys are stored
+ * too, so nothing needs to be hashed on restore.
+ */
+public class PageCache {
+
+    static final int MAGIC = 0x414c5043; // "ALPC"
+    static final int VERSION = 3;
+
+    /** max number of items persisted */
+    public static final int MAX_ITEMS = 60;
+
+    public static class Snapshot {
+        int mTotal;
+        long mTime;
+        ArrayList<AppItem> mList;
+    }
+
+    // one writer for all instances, activities create one per onCreate()
+    private static ExecutorService sExecutor;
+
+    private final File mFile;
+
+    public PageCache(File dir, String name) {
+        mFile = new File(dir, name);
+    }
+
+    /**
+     * read snapshot, return null if there is none or it is corrupted.
+     */
+    public Snapshot load() {
+        if (!mFile.isFile())
+            return null;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mFile), 4 * 1024));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("bad header");
+            Snapshot snapshot = new Snapshot();
+            snapshot.mTime = in.readLong();
+            snapshot.mTotal = in.readInt();
+            int count = in.readInt();
+            if (count < 0 || count > MAX_ITEMS)
+                throw new IOException("bad count");
+            ArrayList<AppItem> list = new ArrayList<AppItem>(count);
+            for (int i = 0; i < count; i++) {
+                AppItem item = new AppItem();
+                item.icon = readString(in);
+                item.title = readString(in);
+                item.dev = readString(in);
+                if (in.readBoolean())
+                    item.key = new HashKey(in.readLong(), in.readLong());
+                list.add(item);
+            }
+            snapshot.mList = list;
+            return snapshot;
+        } catch (Exception e) {
+            mFile.delete();
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception ex) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * write snapshot of the list from its first item, the file is replaced
+     * atomically.
+     */
+    public boolean save(List<AppItem> list, int total) {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tmp), 4 * 1024));
+            int count = Math.min(list.size(), MAX_ITEMS);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(System.currentTimeMillis());
+            out.writeInt(total);
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                AppItem item = list.get(i);
+                writeString(out, item.icon);
+                writeString(out, item.title);
+                writeString(out, item.dev);
+                out.writeBoolean(item.key != null);
+                if (item.key != null) {
+                    out.writeLong(item.key.getHigh());
+                    out.writeLong(item.key.getLow());
+                }
+            }
+            out.close();
+            out = null;
+            return tmp.renameTo(mFile);
+        } catch (Exception e) {
+            // ignore
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception ex) {
+                    // ignore
+                }
+            }
+        }
+        tmp.delete();
+        return false;
+    }
+
+    /**
+     * write snapshot on background thread. Items are copied, caller is
+     * free to modify the list afterward.
+     */
+    public void saveAsync(List<AppItem> list, final int total) {
+        final ArrayList<AppItem> copy = new ArrayList<AppItem>(
+                list.subList(0, Math.min(list.size(), MAX_ITEMS)));
+        getExecutor().execute(new Runnable() {
+            public void run() {
+                save(copy, total);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PageCacheWriter");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    /**
+     * delete snapshot.
+     */
+    public void clear() {
+        mFile.delete();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String str)
+            throws IOException {
+        out.writeBoolean(str != null);
+        if (str != null)
+            out.writeUTF(str);
+    }
+
+    /** whether two items show the same content. */
+    static boolean sameItem(AppItem a, AppItem b) {
+        return equals(a.icon, b.icon) && equals(a.title, b.title)
+                && equals(a.dev, b.dev);
+    }
+
+    private static boolean equals(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,241 @@
+package net.carleolee.android.demo;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.json.JSONException;
+
+import net.carleolee.android.util.HashKey;
+
+/**
+ * Load one page of app list. Items are parsed straight off the (compressed)
+ * response stream and, if a listener is given, handed out in small batches
+ * while the rest of the page is still downloading.
+ * This class is thread safe, parsers are pooled and reused.
+ */
+public class PageLoader {
+
+    public enum State {
+        OK,
+        TIMEOUT,
+        NETWORK_ERROR,
+        ERROR
+    }
+
+    public static class Result {
+        State mState;
+        int mTotal;
+        int mOffset;
+        ArrayList<AppItem> mList;
+    }
+
+    public interface Listener {
+        /**
+         * called on loading thread once a batch of items is parsed.
+         * Ownership of the list is transferred to listener.
+         */
+        public void onItems(ArrayList<AppItem> items);
+    }
+
+    public final static int DEFAULT_BATCH = 5;
+
+    private final int mBatch;
+
+    private final ArrayList<JsonPullParser> mParsers =
+            new ArrayList<JsonPullParser>(2);
+
+    public PageLoader() {
+        this(DEFAULT_BATCH);
+    }
+
+    /**
+     * @param batch number of items per incremental batch
+     */
+    public PageLoader(int batch) {
+        if (batch < 1)
+            throw new IllegalArgumentException("batch must be positive");
+        mBatch = batch;
+    }
+
+    private JsonPullParser obtainParser() {
+        synchronized (mParsers) {
+            int n = mParsers.size();
+            if (n > 0)
+                return mParsers.remove(n - 1);
+        }
+        return new JsonPullParser();
+    }
+
+    private void recycleParser(JsonPullParser parser) {
+        parser.release();
+        synchronized (mParsers) {
+            mParsers.add(parser);
+        }
+    }
+
+    /**
+     * load page from given url. If listener is not null and the page is
+     * known to be good before its items (result, total and offset come
+     * first), parsed items are delivered to it in batches and result's list
+     * only holds the tail which is not delivered yet. Otherwise all items
+     * stay in result's list.
+     */
+    public Result load(String urlstr, Listener listener) {
+        Result result = new Result();
+        HttpURLConnection conn = null;
+        JsonPullParser parser = null;
+        try {
+            URL url = new URL(urlstr);
+            URLConnection connection = url.openConnection();
+            if (!(connection instanceof HttpURLConnection)) {
+                result.mState = State.ERROR;
+                return result;
+            }
+            conn = (HttpURLConnection) connection;
+            conn.setConnectTimeout(5000);
+            conn.setReadTimeout(10000);
+            conn.setInstanceFollowRedirects(true);
+            conn.setRequestProperty("Accept-Encoding", "gzip,deflate");
+            conn.connect();
+            InputStream in = conn.getInputStream();
+            String encoding = conn.getContentEncoding();
+            if ("gzip".equalsIgnoreCase(encoding)) {
+                in = new GZIPInputStream(new BufferedInputStream(in, 8 * 1024));
+            } else if ("deflate".equalsIgnoreCase(encoding)) {
+                in = new InflaterInputStream(new BufferedInputStream(in, 8 * 1024));
+            }
+            parser = obtainParser();
+            parser.setInput(in);
+            boolean ok = parse(parser, result, listener);
+            in.close();
+            if (!ok) {
+                result.mState = State.ERROR;
+                return result;
+            }
+            if (result.mTotal <= 0) {
+                result.mList = null;
+                result.mState = State.OK;
+                return result;
+            }
+            if (result.mOffset < 0) {
+                result.mState = State.ERROR;
+                return result;
+            }
+            result.mState = State.OK;
+            return result;
+        } catch (SocketTimeoutException e1) {
+            result.mState = State.TIMEOUT;
+            return result;
+        } catch (IOException e2) {
+            result.mState = State.NETWORK_ERROR;
+            return result;
+        } catch (Exception e) {
+            //
+        } finally {
+            if (parser != null)
+                recycleParser(parser);
+            if (conn != null) {
+                try {
+                    conn.disconnect();
+                } catch (Exception e4) {
+                    // ignore
+                }
+            }
+        }
+        result.mState = State.ERROR;
+        return result;
+    }
+
+    /**
+     * parse page message, return false if result is not "ok".
+     */
+    private boolean parse(JsonPullParser parser, Result result, Listener listener)
+            throws IOException, JSONException {
+        if (parser.next() != JsonPullParser.BEGIN_OBJECT)
+            throw new JSONException("page is not an object");
+        boolean ok = false;
+        boolean hasTotal = false;
+        boolean hasOffset = false;
+        while (parser.next() == JsonPullParser.NAME) {
+            if (parser.textEquals("result")) {
+                ok = parser.next() == JsonPullParser.STRING && parser.textEquals("ok");
+            } else if (parser.textEquals("total")) {
+                if (parser.next() != JsonPullParser.NUMBER)
+                    throw new JSONException("bad total");
+                result.mTotal = parser.getInt();
+                hasTotal = true;
+            } else if (parser.textEquals("offset")) {
+                if (parser.next() != JsonPullParser.NUMBER)
+                    throw new JSONException("bad offset");
+                result.mOffset = parser.getInt();
+                hasOffset = true;
+            } else if (parser.textEquals("data")) {
+                int token = parser.next();
+                // publish early only once the page can not be rejected
+                boolean good = ok && hasTotal && result.mTotal > 0 && hasOffset;
+                if (token == JsonPullParser.BEGIN_ARRAY)
+                    parseItems(parser, result, good ? listener : null);
+                else if (token != JsonPullParser.NULL)
+                    throw new JSONException("bad data");
+            } else {
+                parser.skipValue();
+            }
+        }
+        if (ok && !hasTotal)
+            throw new JSONException("no total");
+        if (ok && result.mTotal > 0 && !hasOffset)
+            throw new JSONException("no offset");
+        return ok;
+    }
+
+    private void parseItems(JsonPullParser parser, Result result, Listener listener)
+            throws IOException, JSONException {
+        ArrayList<AppItem> list = new ArrayList<AppItem>(mBatch);
+        int token;
+        while ((token = parser.next()) == JsonPullParser.BEGIN_OBJECT) {
+            list.add(parseItem(parser));
+            if (listener != null && list.size() >= mBatch) {
+                listener.onItems(list);
+                list = new ArrayList<AppItem>(mBatch);
+            }
+        }
+        if (token != JsonPullParser.END_ARRAY)
+            throw new JSONException("bad item");
+        result.mList = list;
+    }
+
+    private AppItem parseItem(JsonPullParser parser)
+            throws IOException, JSONException {
+        AppItem item = new AppItem();
+        while (parser.next() == JsonPullParser.NAME) {
+            if (parser.textEquals("icon"))
+                item.icon = nextString(parser);
+            else if (parser.textEquals("title"))
+                item.title = nextString(parser);
+            else if (parser.textEquals("dev"))
+                item.dev = nextString(parser);
+            else
+                parser.skipValue();
+        }
+        item.key = HashKey.of(item.icon);
+        return item;
+    }
+
+    private String nextString(JsonPullParser parser)
+            throws IOException, JSONException {
+        int token = parser.next();
+        if (token == JsonPullParser.STRING)
+            return parser.getText();
+        else if (token == JsonPullParser.NULL)
+            return null;
+        throw new JSONException("expect string");
+    }
+}
@@ -0,0 +1,313 @@
+package net.carleolee.android.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+
+import net.carleolee.android.util.CacheTuner;
+import net.carleolee.android.util.HashKey;
+import net.carleolee.android.util.IconAdapter;
+
+/**
+ * Replay a {@link ScrollTrace} through IconAdapter, AsyncLoader and
+ * CacheStrategy against a {@link StubImageServer}, run from the test
+ * screen on main thread. Rows are bound like a ListView recycling
+ * 'visible + 2' views. Reports time from a row becoming visible to its
+ * icon being shown, wasted downloads, cache hit ratio and the peak bytes
+ * of bitmaps held by the cache or decoded and not delivered yet.
+ * The adapter's cache is sized by a {@link CacheTuner}, its final capacity
+ * is reported too.
+ */
+public class ReplayHarness {
+
+    public interface Listener {
+        public void onFinished(ReplayHarness harness);
+    }
+
+    // wait for outstanding loads after the last frame
+    static final int SETTLE_TIMEOUT = 10000;
+    static final int SETTLE_POLL = 100;
+
+    final ScrollTrace mTrace;
+    final ReplayAdapter mAdapter;
+    final AllocCheck.StubImageView[] mViews;
+    final int[] mViewPositions;
+    final String[] mUrls;
+    final HashKey[] mKeys;
+    final Handler mHandler = new Handler();
+
+    // row key to time it became visible, until its icon is shown
+    final HashMap<HashKey, Long> mPending = new HashMap<HashKey, Long>();
+    final ArrayList<Integer> mLatencies = new ArrayList<Integer>();
+    final AtomicInteger mDownloads = new AtomicInteger();
+
+    int mBinds;
+    int mHits;
+    int mDelivered;
+    int mMismatched;
+    int mFailed;
+    int mAbandoned;
+    // bitmaps decoded on loader threads, not delivered yet
+    final AtomicInteger mInFlight = new AtomicInteger();
+    // the stub server serves one icon, every bitmap has its size
+    volatile int mIconBytes;
+    long mPeakBytes;
+    // tuned capacity of the adapter's cache at the end
+    int mCapacity;
+
+    boolean mBinding;
+    int mFrame;
+    int mFirst;
+    int mCount;
+    long mStart;
+    long mEnd;
+    Listener mListener;
+
+    class ReplayAdapter extends IconAdapter<HashKey, Void> {
+        ReplayAdapter(int visibleRows) {
+            super(true, R.drawable.default_icon, 0, new CacheTuner(visibleRows));
+        }
+
+        int getCacheCapacity() {
+            synchronized (mImageCache) {
+                return mImageCache.getCapacity();
+            }
+        }
+
+        int getCacheCount() {
+            synchronized (mImageCache) {
+                return mImageCache.getSize();
+            }
+        }
+
+        void bind(int position, ImageView image) {
+            bindImage(mKeys[position], mUrls[position], null, image);
+        }
+
+        @Override
+        protected Bitmap loadImageLocal(HashKey key, String url, Void extra) {
+            // no disk cache, every miss goes to the server
+            return null;
+        }
+
+        @Override
+        protected Bitmap loadImageRemote(HashKey key, String url, Void extra) {
+            int maxSize = 50 * 1024;
+            byte[] buff = new byte[maxSize];
+            int n = MiscUtils.downloadIcon(url, buff, maxSize);
+            if (n <= 0)
+                return null;
+            Bitmap bm = BitmapFactory.decodeByteArray(buff, 0, n);
+            if (bm != null) {
+                mDownloads.incrementAndGet();
+                mIconBytes = bm.getRowBytes() * bm.getHeight();
+                mInFlight.incrementAndGet();
+            }
+            return bm;
+        }
+
+        @Override
+        protected void onImageLoaded(HashKey key, String url, Void extra,
+                ImageView image, Bitmap bm) {
+            if (bm != null) {
+                mInFlight.decrementAndGet();
+                mDelivered++;
+                if (!key.equals(image.getTag()))
+                    mMismatched++;
+            } else if (key.equals(image.getTag()) && mPending.remove(key) != null) {
+                mFailed++;
+            }
+            super.onImageLoaded(key, url, extra, image, bm);
+        }
+
+        @Override
+        protected void bindImageHook(HashKey key, String url, Void extra,
+                ImageView image, Bitmap bm) {
+            if (bm == null || key == null || !key.equals(image.getTag()))
+                return;
+            if (mBinding)
+                mHits++;
+            Long start = mPending.remove(key);
+            if (start != null)
+                mLatencies.add((int) (SystemClock.uptimeMillis() - start));
+        }
+
+        public int getCount() {
+            return mUrls.length;
+        }
+
+        public Object getItem(int position) {
+            return null;
+        }
+
+        public long getItemId(int position) {
+            return position;
+        }
+
+        public View getView(int position, View convertView, ViewGroup parent) {
+            return convertView;
+        }
+    }
+
+    public ReplayHarness(Context context, ScrollTrace trace, String urlPrefix) {
+        mTrace = trace;
+        int items = trace.getItemCount();
+        mUrls = new String[items];
+        mKeys = new HashKey[items];
+        for (int i = 0; i < items; i++) {
+            mUrls[i] = urlPrefix + i + ".png";
+            mKeys[i] = HashKey.of(mUrls[i]);
+        }
+        int visible = 0;
+        for (ScrollTrace.Frame frame: trace.getFrames())
+            visible = Math.max(visible, frame.mCount);
+        mViews = new AllocCheck.StubImageView[visible + 2];
+        mViewPositions = new int[mViews.length];
+        for (int i = 0; i < mViews.length; i++) {
+            mViews[i] = new AllocCheck.StubImageView(context);
+            mViewPositions[i] = -1;
+        }
+        mAdapter = new ReplayAdapter(Math.max(1, visible));
+    }
+
+    /**
+     * start replay on main thread, 'listener' is called when done.
+     */
+    public void start(Listener listener) {
+        mListener = listener;
+        mAdapter.onResume();
+        mStart = SystemClock.uptimeMillis();
+        mHandler.post(mStep);
+    }
+
+    /**
+     * a plain 'size' x 'size' PNG for the stub server.
+     */
+    public static byte[] makeIcon(int size) {
+        Bitmap bm = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        bm.eraseColor(0xff3366cc);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bm.compress(Bitmap.CompressFormat.PNG, 100, out);
+        bm.recycle();
+        return out.toByteArray();
+    }
+
+    /**
+     * bytes of bitmaps strongly cached by the adapter or in flight. Softly
+     * cached ones are left out, the VM frees them under pressure.
+     */
+    long heldBytes() {
+        return (long) (mAdapter.getCacheCount() + mInFlight.get()) * mIconBytes;
+    }
+
+    final Runnable mStep = new Runnable() {
+        public void run() {
+            ArrayList<ScrollTrace.Frame> frames = mTrace.getFrames();
+            long elapsed = SystemClock.uptimeMillis() - mStart;
+            while (mFrame < frames.size() && frames.get(mFrame).mTime <= elapsed)
+                apply(frames.get(mFrame++));
+            sampleMemory();
+            if (mFrame < frames.size()) {
+                mHandler.postDelayed(this, frames.get(mFrame).mTime - elapsed);
+            } else {
+                mEnd = SystemClock.uptimeMillis();
+                mHandler.post(mSettle);
+            }
+        }
+    };
+
+    final Runnable mSettle = new Runnable() {
+        public void run() {
+            sampleMemory();
+            if (!mPending.isEmpty()
+                    && SystemClock.uptimeMillis() - mEnd < SETTLE_TIMEOUT) {
+                mHandler.postDelayed(this, SETTLE_POLL);
+                return;
+            }
+            mAbandoned += mPending.size();
+            mPending.clear();
+            mCapacity = mAdapter.getCacheCapacity();
+            mAdapter.onDestroy();
+            if (mListener != null)
+                mListener.onFinished(ReplayHarness.this);
+        }
+    };
+
+    void sampleMemory() {
+        long held = heldBytes();
+        if (held > mPeakBytes)
+            mPeakBytes = held;
+    }
+
+    void apply(ScrollTrace.Frame frame) {
+        long now = SystemClock.uptimeMillis();
+        int first = frame.mFirst;
+        int end = Math.min(first + frame.mCount, mUrls.length);
+        // rows scrolled away before their icon showed up
+        for (int p = mFirst; p < mFirst + mCount; p++) {
+            if ((p < first || p >= end) && mPending.remove(mKeys[p]) != null)
+                mAbandoned++;
+        }
+        for (int p = first; p < end; p++) {
+            int v = p % mViews.length;
+            if (mViewPositions[v] == p)
+                continue;
+            mViewPositions[v] = p;
+            mPending.put(mKeys[p], now);
+            mBinds++;
+            mBinding = true;
+            mAdapter.bind(p, mViews[v]);
+            mBinding = false;
+        }
+        mFirst = first;
+        mCount = end - first;
+    }
+
+    static int percentile(int[] sorted, int p) {
+        if (sorted.length == 0)
+            return -1;
+        int i = (int) Math.ceil(sorted.length * p / 100.0) - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    /**
+     * results as one JSON object.
+     */
+    public String toJson() {
+        int[] sorted = new int[mLatencies.size()];
+        for (int i = 0; i < sorted.length; i++)
+            sorted[i] = mLatencies.get(i);
+        Arrays.sort(sorted);
+        int downloads = mDownloads.get();
+        // downloads dropped by invalidate() never reach onImageLoaded
+        int wasted = mMismatched + Math.max(0, downloads - mDelivered);
+        double hitRatio = mBinds == 0 ? 0 : Math.round(mHits * 1000.0 / mBinds) / 1000.0;
+        return "{\"frames\":" + mTrace.getFrames().size()
+                + ",\"duration_ms\":" + (mEnd - mStart)
+                + ",\"binds\":" + mBinds
+                + ",\"shown\":" + sorted.length
+                + ",\"failed\":" + mFailed
+                + ",\"abandoned\":" + mAbandoned
+                + ",\"ttv_p50_ms\":" + percentile(sorted, 50)
+                + ",\"ttv_p90_ms\":" + percentile(sorted, 90)
+                + ",\"ttv_p99_ms\":" + percentile(sorted, 99)
+                + ",\"ttv_max_ms\":" + (sorted.length == 0 ? -1 : sorted[sorted.length - 1])
+                + ",\"downloads\":" + downloads
+                + ",\"wasted_downloads\":" + wasted
+                + ",\"cache_hit_ratio\":" + hitRatio
+                + ",\"cache_capacity\":" + mCapacity
+                + ",\"peak_held_bytes\":" + mPeakBytes
+                + "}";
+    }
+}
@@ -0,0 +1,111 @@
+package net.carleolee.android.demo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Visible ranges of a list over time, replayed by {@link ReplayHarness}.
+ * The text form has one frame per line, "time first count" with time in
+ * milliseconds from the start; lines starting with '#' are comments.
+ */
+public class ScrollTrace {
+
+    public static class Frame {
+        public final int mTime;
+        public final int mFirst;
+        public final int mCount;
+
+        public Frame(int time, int first, int count) {
+            mTime = time;
+            mFirst = first;
+            mCount = count;
+        }
+    }
+
+    final ArrayList<Frame> mFrames = new ArrayList<Frame>();
+    int mItems;
+
+    public ArrayList<Frame> getFrames() {
+        return mFrames;
+    }
+
+    /** number of list items the trace touches */
+    public int getItemCount() {
+        return mItems;
+    }
+
+    void add(int time, int first, int count) {
+        mFrames.add(new Frame(time, first, count));
+        mItems = Math.max(mItems, first + count);
+    }
+
+    /**
+     * read a recorded trace, frames must be ordered by time.
+     */
+    public static ScrollTrace parse(Reader reader) throws IOException {
+        ScrollTrace trace = new ScrollTrace();
+        BufferedReader in = new BufferedReader(reader);
+        String line;
+        int lineNo = 0;
+        while ((line = in.readLine()) != null) {
+            lineNo++;
+            line = line.trim();
+            if (line.length() == 0 || line.charAt(0) == '#')
+                continue;
+            String[] parts = line.split("\\s+");
+            if (parts.length != 3)
+                throw new IOException("bad frame at line " + lineNo);
+            try {
+                trace.add(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]),
+                        Integer.parseInt(parts[2]));
+            } catch (NumberFormatException e) {
+                throw new IOException("bad frame at line " + lineNo);
+            }
+        }
+        return trace;
+    }
+
+    /**
+     * generate flings and pauses over 'items' rows with 'visible' rows on
+     * screen, mostly downward with occasional flings back up. One frame is
+     * emitted whenever the first visible row changes.
+     */
+    public static ScrollTrace synthetic(int items, int visible, long seed) {
+        ScrollTrace trace = new ScrollTrace();
+        Random random = new Random(seed);
+        int last = items - visible;
+        double pos = 0;
+        int time = 0;
+        int first = 0;
+        trace.add(time, first, visible);
+        while (true) {
+            // pause to read
+            time += 300 + random.nextInt(1500);
+            boolean down = pos < visible || random.nextInt(5) > 0;
+            // rows per second, decays like a fling
+            double velocity = 10 + random.nextInt(50);
+            if (!down)
+                velocity = -velocity;
+            while (Math.abs(velocity) > 2) {
+                time += 16;
+                pos += velocity * 0.016;
+                velocity *= 0.97;
+                if (pos < 0)
+                    pos = 0;
+                if (pos > last)
+                    pos = last;
+                int f = (int) pos;
+                if (f != first) {
+                    first = f;
+                    trace.add(time, first, visible);
+                }
+            }
+            if (first >= last)
+                break;
+        }
+        return trace;
+    }
+}
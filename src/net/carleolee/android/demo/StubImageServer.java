@@ -0,0 +1,153 @@
+package net.carleolee.android.demo;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal in-process HTTP server answering every GET with the same image,
+ * used by the scroll replay test. Latency, bandwidth and failure rate are
+ * configurable so slow and flaky networks can be reproduced.
+ */
+public class StubImageServer implements Runnable {
+
+    private final byte[] mBody;
+    private final int mLatency;
+    private final int mBytesPerSecond;
+    private final float mFailureRate;
+    private final Random mRandom;
+
+    private final AtomicInteger mRequests = new AtomicInteger();
+    private final AtomicInteger mFailures = new AtomicInteger();
+
+    private ServerSocket mServer;
+    private ExecutorService mExecutor;
+    private volatile boolean mStoped;
+
+    /**
+     * @param body image returned for every path
+     * @param latency delay before answering, in milliseconds
+     * @param bytesPerSecond bandwidth of each response, 0 for unlimited
+     * @param failureRate ratio of requests answered with an error
+     */
+    public StubImageServer(byte[] body, int latency, int bytesPerSecond,
+            float failureRate, long seed) {
+        mBody = body;
+        mLatency = latency;
+        mBytesPerSecond = bytesPerSecond;
+        mFailureRate = failureRate;
+        mRandom = new Random(seed);
+    }
+
+    /**
+     * listen on a free port of the loopback interface.
+     */
+    public void start() throws IOException {
+        mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        // daemon, so a replay left running does not keep the process alive
+        mExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StubImageServer-conn");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Thread t = new Thread(this, "StubImageServer");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** url prefix, append any name */
+    public String getUrlPrefix() {
+        return "http://127.0.0.1:" + mServer.getLocalPort() + "/icon/";
+    }
+
+    public int getRequests() {
+        return mRequests.get();
+    }
+
+    public int getFailures() {
+        return mFailures.get();
+    }
+
+    public void stop() {
+        mStoped = true;
+        try {
+            mServer.close();
+        } catch (Exception e) {
+            // ignore
+        }
+        mExecutor.shutdownNow();
+    }
+
+    public void run() {
+        while (!mStoped) {
+            final Socket socket;
+            try {
+                socket = mServer.accept();
+            } catch (IOException e) {
+                break;
+            }
+            mExecutor.execute(new Runnable() {
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    void serve(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+            String line = in.readLine();
+            while (line != null && line.length() > 0)
+                line = in.readLine();
+            mRequests.incrementAndGet();
+            if (mLatency > 0)
+                Thread.sleep(mLatency);
+
+            OutputStream out = socket.getOutputStream();
+            if (mRandom.nextFloat() < mFailureRate) {
+                mFailures.incrementAndGet();
+                out.write(("HTTP/1.0 500 Internal Server Error\r\n"
+                        + "Content-Length: 0\r\nConnection: close\r\n\r\n")
+                        .getBytes("ISO-8859-1"));
+                out.flush();
+                return;
+            }
+            out.write(("HTTP/1.0 200 OK\r\nContent-Type: image/png\r\n"
+                    + "Content-Length: " + mBody.length
+                    + "\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+            if (mBytesPerSecond <= 0) {
+                out.write(mBody);
+            } else {
+                // send in 10 ms slices
+                int chunk = Math.max(1, mBytesPerSecond / 100);
+                for (int off = 0; off < mBody.length; off += chunk) {
+                    out.write(mBody, off, Math.min(chunk, mBody.length - off));
+                    out.flush();
+                    Thread.sleep(10);
+                }
+            }
+            out.flush();
+        } catch (Exception e) {
+            // ignore, client gone or server stoped
+        } finally {
+            try {
+                socket.close();
+            } catch (Exception e) {
+                // ignore
+            }
+        }
+    }
+}
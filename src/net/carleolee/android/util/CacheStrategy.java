@@ -1,10 +1,12 @@
 package net.carleolee.android.util;
 
 import java.lang.ref.SoftReference;
-import java.util.HashMap;
 
 /**
  * LRU cache utility. Note that this implementation is not synchronized.
+ * Most recently used values are held strongly, older ones only through soft
+ * references. Entries live in an intrusive hash table and nodes are
+ * recycled, so a cache hit or a put of a recycled key allocates nothing.
  *
  * @param <K> the type of keys
  * @param <T> the type of cached values
@@ -14,21 +16,44 @@ public class CacheStrategy<K, V> {
     /** default cache size */
     public static final int DEFAULT_CAPACITY = 16;
 
-    /** Node for bi-directional linked list */
+    // trim levels, same values as ComponentCallbacks2 of API level 14
+    public static final int TRIM_MEMORY_RUNNING_MODERATE = 5;
+    public static final int TRIM_MEMORY_RUNNING_LOW = 10;
+    public static final int TRIM_MEMORY_RUNNING_CRITICAL = 15;
+    public static final int TRIM_MEMORY_UI_HIDDEN = 20;
+    public static final int TRIM_MEMORY_BACKGROUND = 40;
+    public static final int TRIM_MEMORY_MODERATE = 60;
+    public static final int TRIM_MEMORY_COMPLETE = 80;
+
+    /** Node for bi-directional linked list and hash bucket */
     class Node {
         Node prev;
         Node next;
+        Node hnext;
+        int hash;
         K key;
+        // strong value while node is in the list
         V data;
+        // soft value once node is out of the list, kept for reuse
+        SoftReference<V> ref;
     }
 
-    private final int mCapacity;
+    private int mCapacity;
     private final Node mHead;
     private final Node mTail;
-    private HashMap<K, SoftReference<Node>> mMap =
-            new HashMap<K, SoftReference<Node>>();
+    private Node[] mTable;
+    private int mCount;
     private int mSize;
 
+    // recycled nodes, linked by 'next'
+    private Node mPool;
+    private int mPoolSize;
+
+    // statistics for tuning, see CacheTuner
+    private int mHits;
+    private int mMisses;
+    private int mEvictions;
+
     /**
      * construct CacheStrategy with default capacity. Currently
      * default capacity is 16.
@@ -53,6 +78,154 @@ public class CacheStrategy<K, V> {
         mHead.next = mTail;
         mTail.prev = mHead;
         mSize = 0;
+        int n = 4;
+        while (n < capacity * 2)
+            n <<= 1;
+        mTable = newTable(n);
+        mCount = 0;
+    }
+
+    /** number of values cached with strong reference */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /** number of values held with strong reference now */
+    public int getSize() {
+        return mSize;
+    }
+
+    /**
+     * change capacity, least recently used values beyond it are kept with
+     * soft references.
+     */
+    public void setCapacity(int capacity) {
+        if (capacity <= 1)
+            throw new IllegalArgumentException("capacity must be great than one");
+        mCapacity = capacity;
+        while (mSize > capacity) {
+            demote(mTail.prev);
+            mSize--;
+        }
+    }
+
+    /** number of get() returning a value */
+    public int getHitCount() {
+        return mHits;
+    }
+
+    /** number of get() returning null */
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    /** number of values pushed out of strong references by capacity */
+    public int getEvictionCount() {
+        return mEvictions;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Node[] newTable(int n) {
+        return (Node[]) new CacheStrategy.Node[n];
+    }
+
+    private static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private Node find(K key, int hash) {
+        Node node = mTable[hash & (mTable.length - 1)];
+        while (node != null) {
+            if (node.hash == hash && (node.key == key || node.key.equals(key)))
+                return node;
+            node = node.hnext;
+        }
+        return null;
+    }
+
+    private void map(Node node) {
+        if (mCount * 4 >= mTable.length * 3) {
+            purge();
+            if (mCount * 4 >= mTable.length * 3)
+                resize();
+        }
+        int i = node.hash & (mTable.length - 1);
+        node.hnext = mTable[i];
+        mTable[i] = node;
+        mCount++;
+    }
+
+    private void unmap(Node node) {
+        int i = node.hash & (mTable.length - 1);
+        Node p = mTable[i];
+        if (p == node) {
+            mTable[i] = node.hnext;
+        } else {
+            while (p.hnext != node)
+                p = p.hnext;
+            p.hnext = node.hnext;
+        }
+        mCount--;
+    }
+
+    private void resize() {
+        Node[] old = mTable;
+        Node[] table = newTable(old.length * 2);
+        for (int j = 0; j < old.length; j++) {
+            Node node = old[j];
+            while (node != null) {
+                Node next = node.hnext;
+                int i = node.hash & (table.length - 1);
+                node.hnext = table[i];
+                table[i] = node;
+                node = next;
+            }
+        }
+        mTable = table;
+    }
+
+    /**
+     * drop soft entries whose value has been collected.
+     */
+    private void purge() {
+        Node[] table = mTable;
+        for (int i = 0; i < table.length; i++) {
+            Node node = table[i];
+            while (node != null) {
+                Node next = node.hnext;
+                if (node.next == null && (node.ref == null || node.ref.get() == null)) {
+                    unmap(node);
+                    recycle(node);
+                }
+                node = next;
+            }
+        }
+    }
+
+    private Node obtain() {
+        Node node = mPool;
+        if (node == null)
+            return new Node();
+        mPool = node.next;
+        mPoolSize--;
+        node.next = null;
+        return node;
+    }
+
+    private void recycle(Node node) {
+        node.prev = null;
+        node.hnext = null;
+        node.key = null;
+        node.data = null;
+        node.ref = null;
+        if (mPoolSize < mCapacity) {
+            node.next = mPool;
+            mPool = node;
+            mPoolSize++;
+        } else {
+            node.next = null;
+        }
     }
 
     private void detach(Node node) {
@@ -70,13 +243,25 @@ public class CacheStrategy<K, V> {
         head.next = node;
     }
 
+    /**
+     * move node out of the list, keep its value with a soft reference.
+     */
+    private void demote(Node node) {
+        detach(node);
+        V data = node.data;
+        node.data = null;
+        if (node.ref == null || node.ref.get() != data)
+            node.ref = new SoftReference<V>(data);
+    }
+
     private void enqueue(Node node) {
         attach(mHead, node);
         mSize++;
         if (mSize > mCapacity) {
             if (mTail.prev != mHead) {
-                detach(mTail.prev);
+                demote(mTail.prev);
                 mSize--;
+                mEvictions++;
             }
         }
     }
@@ -85,57 +270,60 @@ public class CacheStrategy<K, V> {
      * get cached data of given key, return null if cache missed.
      */
     public V get(K key) {
-        SoftReference<Node> ref = mMap.get(key);
-        if (ref == null)
-            return null;
-
-        Node node = ref.get();
+        int hash = hash(key);
+        Node node = find(key, hash);
         if (node == null) {
-            mMap.remove(key);
+            mMisses++;
             return null;
-        } else {
-            // still in link, try to move to head
-            if (node.prev != null && node.next != null) {
-                if (node.prev != mHead) {
-                    detach(node);
-                    attach(mHead, node);
-                }
-            } else {
-                enqueue(node);
+        }
+
+        // still in link, try to move to head
+        if (node.prev != null && node.next != null) {
+            if (node.prev != mHead) {
+                detach(node);
+                attach(mHead, node);
             }
+            mHits++;
             return node.data;
         }
+        V data = node.ref == null ? null : node.ref.get();
+        if (data == null) {
+            unmap(node);
+            recycle(node);
+            mMisses++;
+            return null;
+        }
+        node.data = data;
+        enqueue(node);
+        mHits++;
+        return data;
     }
 
     /**
      * cache data for given key.
      */
     public void put(K key, V data) {
-        SoftReference<Node> ref = mMap.get(key);
-        Node node = null;
-        if (ref != null) {
-            node = ref.get();
-            if (node != null) {
-                node.key = key;
-                node.data = data;
-                // still in link, move to head
-                if (node.prev != null && node.next != null) {
-                    if (node.prev != mHead) {
-                        detach(node);
-                        attach(mHead, node);
-                    }
-                } else {
-                    enqueue(node);
+        int hash = hash(key);
+        Node node = find(key, hash);
+        if (node != null) {
+            node.data = data;
+            // still in link, move to head
+            if (node.prev != null && node.next != null) {
+                if (node.prev != mHead) {
+                    detach(node);
+                    attach(mHead, node);
                 }
-                return;
+            } else {
+                enqueue(node);
             }
+            return;
         }
 
-        node = new Node();
+        node = obtain();
+        node.hash = hash;
         node.key = key;
         node.data = data;
-        ref = new SoftReference<Node>(node);
-        mMap.put(key, ref);
+        map(node);
         enqueue(node);
     }
 
@@ -143,19 +331,37 @@ public class CacheStrategy<K, V> {
      * Just keep a soft reference
      */
     public void putWeak(K key, V data) {
-        Node node = new Node();
-        node.key = key;
-        node.data = data;
-        SoftReference<Node> ref = new SoftReference<Node>(node);
-        ref = new SoftReference<Node>(node);
-        mMap.put(key, ref);
+        int hash = hash(key);
+        Node node = find(key, hash);
+        if (node == null) {
+            node = obtain();
+            node.hash = hash;
+            node.key = key;
+            map(node);
+        } else if (node.prev != null && node.next != null) {
+            // strongly cached already, just update
+            node.data = data;
+            return;
+        }
+        if (node.ref == null || node.ref.get() != data)
+            node.ref = new SoftReference<V>(data);
     }
 
     /**
      * clear cache.
      */
     public void clear() {
-        mMap.clear();
+        Node[] table = mTable;
+        for (int i = 0; i < table.length; i++) {
+            Node node = table[i];
+            table[i] = null;
+            while (node != null) {
+                Node next = node.hnext;
+                recycle(node);
+                node = next;
+            }
+        }
+        mCount = 0;
         mSize = 0;
         mHead.next = mTail;
         mTail.prev = mHead;
@@ -167,8 +373,42 @@ public class CacheStrategy<K, V> {
      */
     public void release() {
         while (mHead.next != mTail)
-            detach(mHead.next);
+            demote(mHead.next);
         mSize = 0;
     }
 
+    /**
+     * shrink strong references according to memory pressure 'level', one of
+     * the TRIM_MEMORY_* constants. Least recently used values are kept with
+     * soft references.
+     */
+    public void trim(int level) {
+        int keep = trimmedSize(mSize, level);
+        while (mSize > keep) {
+            demote(mTail.prev);
+            mSize--;
+        }
+    }
+
+    /**
+     * how much of 'size' to keep strongly at trim 'level'.
+     */
+    static int trimmedSize(int size, int level) {
+        if (level >= TRIM_MEMORY_COMPLETE)
+            return 0;
+        if (level >= TRIM_MEMORY_MODERATE)
+            return size / 4;
+        if (level >= TRIM_MEMORY_BACKGROUND)
+            return size / 2;
+        if (level >= TRIM_MEMORY_UI_HIDDEN)
+            return size * 3 / 4;
+        if (level >= TRIM_MEMORY_RUNNING_CRITICAL)
+            return size / 4;
+        if (level >= TRIM_MEMORY_RUNNING_LOW)
+            return size / 2;
+        if (level >= TRIM_MEMORY_RUNNING_MODERATE)
+            return size * 3 / 4;
+        return size;
+    }
+
 }
@@ -0,0 +1,115 @@
+package net.carleolee.android.util;
+
+/**
+ * Sizes the memory cache of an {@link IconAdapter} instead of a constant
+ * capacity. The initial capacity covers a few screens of 'visibleRows'
+ * and the bounds come from the heap limit of the device (its memory
+ * class) and the average size of images seen so far. Every WINDOW lookups
+ * the adapter reports hits and evictions: capacity grows while the rolling
+ * hit ratio is below target and values are evicted, and shrinks slowly
+ * while nothing is evicted, so it settles just above the working set.
+ * Not thread safe, IconAdapter uses it on main thread only.
+ */
+public class CacheTuner {
+
+    /** lookups between adjustments */
+    public static final int WINDOW = 64;
+
+    /** rolling hit ratio wanted, in percent */
+    public static final int TARGET_HIT_PERCENT = 90;
+
+    /** evictions per lookup, in percent, above which capacity may grow */
+    static final int GROW_EVICT_PERCENT = 10;
+
+    /** guess of image size before any is seen, a 48dp icon at hdpi */
+    static final int DEFAULT_IMAGE_BYTES = 72 * 72 * 4;
+
+    private final int mVisibleRows;
+    private final int mBudget;
+    private final int mMinCapacity;
+    private int mCapacity;
+    private int mImageBytes = DEFAULT_IMAGE_BYTES;
+    // rolling hit ratio in percent, -1 before the first window
+    private int mHitPercent = -1;
+
+    /**
+     * tuner for a list showing 'visibleRows' rows at once, with budget of
+     * 1/8 of the heap limit.
+     */
+    public CacheTuner(int visibleRows) {
+        this(visibleRows, (int) Math.min(Runtime.getRuntime().maxMemory() / 8,
+                    Integer.MAX_VALUE));
+    }
+
+    /**
+     * @param visibleRows rows shown at once
+     * @param budget bytes the cache may grow to
+     */
+    public CacheTuner(int visibleRows, int budget) {
+        if (visibleRows <= 0 || budget <= 0)
+            throw new IllegalArgumentException("visibleRows and budget must be positive");
+        mVisibleRows = visibleRows;
+        mBudget = budget;
+        // the screen and the one just scrolled away
+        mMinCapacity = Math.max(2, visibleRows * 2);
+        mCapacity = clamp(visibleRows * 3);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int getMinCapacity() {
+        return mMinCapacity;
+    }
+
+    /** capacity the budget allows at the current average image size */
+    public int getMaxCapacity() {
+        return Math.max(mMinCapacity, mBudget / mImageBytes);
+    }
+
+    /**
+     * loader capacity: pending tasks beyond two screens are for rows
+     * scrolled away.
+     */
+    public int getLoaderCapacity() {
+        return Math.max(LoaderEngine.DEFAULT_CAPACITY, mVisibleRows * 2);
+    }
+
+    /** rolling hit ratio in percent, -1 if not known yet */
+    public int getHitPercent() {
+        return mHitPercent;
+    }
+
+    /**
+     * account an image of 'bytes' put into the cache.
+     */
+    public void observeImage(int bytes) {
+        if (bytes > 0)
+            mImageBytes = Math.max(1, (mImageBytes * 7 + bytes) / 8);
+    }
+
+    /**
+     * adjust capacity by one window of 'lookups' with 'hits' and
+     * 'evictions'. Return the new capacity.
+     */
+    public int adjust(int lookups, int hits, int evictions) {
+        if (lookups <= 0)
+            return mCapacity = clamp(mCapacity);
+        int hitPercent = hits * 100 / lookups;
+        mHitPercent = mHitPercent < 0 ? hitPercent
+                : (mHitPercent * 3 + hitPercent) / 4;
+        int evictPercent = evictions * 100 / lookups;
+        int capacity = mCapacity;
+        if (mHitPercent < TARGET_HIT_PERCENT
+                && evictPercent >= GROW_EVICT_PERCENT)
+            capacity += Math.max(1, capacity / 4);
+        else if (evictions == 0)
+            capacity -= capacity / 8;
+        return mCapacity = clamp(capacity);
+    }
+
+    private int clamp(int capacity) {
+        return Math.max(mMinCapacity, Math.min(capacity, getMaxCapacity()));
+    }
+}
@@ -0,0 +1,13 @@
+package net.carleolee.android.util;
+
+/**
+ * Delivers loader results to the thread that consumes them.
+ * See {@link Dispatchers} and {@link HandlerDispatcher}.
+ */
+public interface Dispatcher {
+
+    /**
+     * run 'task' on the delivery thread. Called on worker threads.
+     */
+    public void dispatch(Runnable task);
+}
@@ -0,0 +1,39 @@
+package net.carleolee.android.util;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Plain Java {@link Dispatcher}s.
+ */
+public final class Dispatchers {
+
+    private static final Dispatcher DIRECT = new Dispatcher() {
+        public void dispatch(Runnable task) {
+            task.run();
+        }
+    };
+
+    private Dispatchers() {
+    }
+
+    /**
+     * run results on the worker thread that produced them.
+     */
+    public static Dispatcher direct() {
+        return DIRECT;
+    }
+
+    /**
+     * run results on 'executor', e.g. a single thread executor acting as
+     * the consumer thread.
+     */
+    public static Dispatcher executor(final Executor executor) {
+        if (executor == null)
+            throw new IllegalArgumentException("executor required");
+        return new Dispatcher() {
+            public void dispatch(Runnable task) {
+                executor.execute(task);
+            }
+        };
+    }
+}
@@ -0,0 +1,277 @@
+package net.carleolee.android.util;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+
+/**
+ * Memory tier of encoded (PNG, JPEG) images between bitmap caches and
+ * disk. Encoded images are 5 to 20 times smaller than their bitmaps, so it
+ * can hold thousands of icons. Bytes are stored in fixed size chunks
+ * carved from slabs allocated on demand up to a byte budget, on the heap
+ * or in direct buffers; an entry takes the chunks it needs, not
+ * necessarily adjacent ones, so freed space is always reusable. Least
+ * recently used entries are evicted first.
+ * This class is thread safe.
+ */
+public class EncodedCache {
+
+    public static final int DEFAULT_CHUNK_SIZE = 1024;
+
+    public static final int DEFAULT_SLAB_SIZE = 64 * 1024;
+
+    static final class Entry {
+        Entry prev;
+        Entry next;
+        Object key;
+        int length;
+        int[] chunks;
+    }
+
+    private final HashMap<Object, Entry> mMap = new HashMap<Object, Entry>();
+    private final Entry mHead;
+    private final Entry mTail;
+
+    private final boolean mDirect;
+    private final int mChunkSize;
+    private final int mChunksPerSlab;
+    private final int mMaxSlabs;
+    private ByteBuffer[] mSlabs;
+    private int mSlabCount;
+
+    // stack of free chunk ids, id = slab * mChunksPerSlab + index
+    private int[] mFree;
+    private int mFreeCount;
+    private int mUsedChunks;
+    private final int mMaxChunks;
+
+    /**
+     * @param maxBytes budget of slabs
+     * @param direct allocate slabs by ByteBuffer.allocateDirect()
+     */
+    public EncodedCache(int maxBytes, boolean direct) {
+        this(maxBytes, direct, DEFAULT_CHUNK_SIZE, DEFAULT_SLAB_SIZE);
+    }
+
+    public EncodedCache(int maxBytes, boolean direct, int chunkSize,
+            int slabSize) {
+        if (chunkSize <= 0 || slabSize < chunkSize)
+            throw new IllegalArgumentException("invalid chunk or slab size");
+        if (maxBytes < slabSize)
+            throw new IllegalArgumentException("maxBytes less than one slab");
+        mDirect = direct;
+        mChunkSize = chunkSize;
+        mChunksPerSlab = slabSize / chunkSize;
+        mMaxSlabs = maxBytes / (mChunksPerSlab * chunkSize);
+        mSlabs = new ByteBuffer[mMaxSlabs];
+        mFree = new int[mChunksPerSlab];
+        mMaxChunks = mMaxSlabs * mChunksPerSlab;
+        mHead = new Entry();
+        mTail = new Entry();
+        mHead.next = mTail;
+        mTail.prev = mHead;
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxChunks * mChunkSize;
+    }
+
+    /** bytes of chunks in use */
+    public synchronized int getSize() {
+        return mUsedChunks * mChunkSize;
+    }
+
+    /** bytes of slabs allocated */
+    public synchronized int getAllocatedSize() {
+        return mSlabCount * mChunksPerSlab * mChunkSize;
+    }
+
+    public synchronized int getCount() {
+        return mMap.size();
+    }
+
+    /**
+     * copy of the bytes of 'key', or null if missed.
+     */
+    public synchronized byte[] get(Object key) {
+        Entry e = mMap.get(key);
+        if (e == null)
+            return null;
+        unlink(e);
+        link(e);
+        byte[] out = new byte[e.length];
+        int done = 0;
+        for (int id: e.chunks) {
+            int n = Math.min(mChunkSize, e.length - done);
+            ByteBuffer slab = mSlabs[id / mChunksPerSlab];
+            slab.position((id % mChunksPerSlab) * mChunkSize);
+            slab.get(out, done, n);
+            done += n;
+        }
+        return out;
+    }
+
+    /**
+     * store 'length' bytes of 'data' from 'offset' for 'key', evicting old
+     * entries as needed. Return false if it is larger than the budget.
+     */
+    public synchronized boolean put(Object key, byte[] data, int offset,
+            int length) {
+        if (key == null || data == null)
+            throw new NullPointerException("key == null || data == null");
+        int need = (length + mChunkSize - 1) / mChunkSize;
+        Entry old = mMap.remove(key);
+        if (old != null)
+            free(old);
+        if (need > mMaxChunks)
+            return false;
+        while (mUsedChunks + need > mMaxChunks && mTail.prev != mHead) {
+            Entry e = mTail.prev;
+            mMap.remove(e.key);
+            free(e);
+        }
+        while (mFreeCount < need && mSlabCount < mMaxSlabs)
+            addSlab();
+        if (mFreeCount < need)
+            return false;
+
+        Entry e = new Entry();
+        e.key = key;
+        e.length = length;
+        e.chunks = new int[need];
+        int done = 0;
+        for (int i = 0; i < need; i++) {
+            int id = mFree[--mFreeCount];
+            int n = Math.min(mChunkSize, length - done);
+            ByteBuffer slab = mSlabs[id / mChunksPerSlab];
+            slab.position((id % mChunksPerSlab) * mChunkSize);
+            slab.put(data, offset + done, n);
+            done += n;
+            e.chunks[i] = id;
+        }
+        mUsedChunks += need;
+        mMap.put(key, e);
+        link(e);
+        return true;
+    }
+
+    public synchronized void remove(Object key) {
+        Entry e = mMap.remove(key);
+        if (e != null)
+            free(e);
+    }
+
+    /**
+     * remove all entries and release the slabs.
+     */
+    public synchronized void clear() {
+        mMap.clear();
+        mHead.next = mTail;
+        mTail.prev = mHead;
+        mUsedChunks = 0;
+        releaseSlabs();
+    }
+
+    /**
+     * shrink to a fraction of the budget by memory pressure 'level', see
+     * {@link CacheStrategy#trim}. Remaining entries are packed into as few
+     * slabs as they need and the others are released.
+     */
+    public synchronized void trim(int level) {
+        int keep = CacheStrategy.trimmedSize(mMaxChunks, level);
+        while (mUsedChunks > keep && mTail.prev != mHead) {
+            Entry e = mTail.prev;
+            mMap.remove(e.key);
+            free(e);
+        }
+        if (mUsedChunks == 0)
+            releaseSlabs();
+        else
+            compact();
+    }
+
+    /**
+     * move chunks out of trailing slabs into free chunks of the first ones
+     * and release the trailing slabs.
+     */
+    private void compact() {
+        int slabs = (mUsedChunks + mChunksPerSlab - 1) / mChunksPerSlab;
+        if (slabs >= mSlabCount)
+            return;
+        int limit = slabs * mChunksPerSlab;
+        // free chunks of the slabs kept; used ones beyond fit in them
+        int count = 0;
+        for (int i = 0; i < mFreeCount; i++) {
+            if (mFree[i] < limit)
+                mFree[count++] = mFree[i];
+        }
+        mFreeCount = count;
+        byte[] buff = new byte[mChunkSize];
+        for (Entry e = mHead.next; e != mTail; e = e.next) {
+            for (int i = 0; i < e.chunks.length; i++) {
+                int id = e.chunks[i];
+                if (id < limit)
+                    continue;
+                int to = mFree[--mFreeCount];
+                ByteBuffer slab = mSlabs[id / mChunksPerSlab];
+                slab.position((id % mChunksPerSlab) * mChunkSize);
+                slab.get(buff);
+                slab = mSlabs[to / mChunksPerSlab];
+                slab.position((to % mChunksPerSlab) * mChunkSize);
+                slab.put(buff);
+                e.chunks[i] = to;
+            }
+        }
+        for (int i = slabs; i < mSlabCount; i++)
+            mSlabs[i] = null;
+        mSlabCount = slabs;
+    }
+
+    private void addSlab() {
+        int slab = mSlabCount++;
+        int bytes = mChunksPerSlab * mChunkSize;
+        mSlabs[slab] = mDirect ? ByteBuffer.allocateDirect(bytes)
+                : ByteBuffer.allocate(bytes);
+        // room for every chunk, all may be freed at once
+        ensureFree(mSlabCount * mChunksPerSlab);
+        // lower ids on top, so slabs fill in order
+        for (int i = mChunksPerSlab - 1; i >= 0; i--)
+            mFree[mFreeCount++] = slab * mChunksPerSlab + i;
+    }
+
+    private void releaseSlabs() {
+        for (int i = 0; i < mSlabCount; i++)
+            mSlabs[i] = null;
+        mSlabCount = 0;
+        mFreeCount = 0;
+    }
+
+    private void ensureFree(int size) {
+        if (mFree.length < size) {
+            int[] free = new int[Math.max(size, mFree.length * 2)];
+            System.arraycopy(mFree, 0, free, 0, mFreeCount);
+            mFree = free;
+        }
+    }
+
+    private void free(Entry e) {
+        unlink(e);
+        for (int id: e.chunks)
+            mFree[mFreeCount++] = id;
+        mUsedChunks -= e.chunks.length;
+        e.chunks = null;
+    }
+
+    private void link(Entry e) {
+        e.next = mHead.next;
+        e.prev = mHead;
+        e.next.prev = e;
+        mHead.next = e;
+    }
+
+    private void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = null;
+        e.next = null;
+    }
+}
@@ -0,0 +1,214 @@
+package net.carleolee.android.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+
+/**
+ * Cache directory invalidated in O(1) by a generation counter. Files live
+ * in 'root/gen-N' of the current generation N; {@link #invalidate} only
+ * bumps and persists N, so old files are unreachable at once, and removes
+ * old generations on a background thread. Listeners are told so memory
+ * copies can be dropped at the same time.
+ * This class is thread safe.
+ */
+public class GenerationalDir {
+
+    public interface Listener {
+
+        /**
+         * called on the thread calling {@link GenerationalDir#invalidate}
+         * after the new generation is in place.
+         */
+        public void onInvalidated(GenerationalDir dir, int generation);
+    }
+
+    static final String PREFIX = "gen-";
+    static final String GENERATION_FILE = "generation";
+
+    private final File mRoot;
+    private int mGeneration;
+    private File mCurrent;
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+    private Thread mReclaimer;
+
+    /**
+     * read the current generation under 'root', 0 if there is none.
+     */
+    public GenerationalDir(File root) {
+        mRoot = root;
+        mGeneration = readGeneration();
+        mCurrent = new File(root, PREFIX + mGeneration);
+    }
+
+    public File getRoot() {
+        return mRoot;
+    }
+
+    public synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * directory of the current generation, may not exist yet.
+     */
+    public synchronized File current() {
+        return mCurrent;
+    }
+
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.add(listener);
+        }
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * drop everything in O(1): move to a new generation, tell listeners
+     * and remove older generations in background. If the new generation
+     * can not be persisted (e.g. storage not writable) it still holds
+     * until the process exits. Return the new generation.
+     */
+    public int invalidate() {
+        int generation;
+        synchronized (this) {
+            generation = ++mGeneration;
+            mCurrent = new File(mRoot, PREFIX + generation);
+            writeGeneration(generation);
+        }
+        Listener[] listeners;
+        synchronized (mListeners) {
+            listeners = mListeners.toArray(new Listener[mListeners.size()]);
+        }
+        for (Listener l: listeners)
+            l.onInvalidated(this, generation);
+        reclaimAsync();
+        return generation;
+    }
+
+    /**
+     * remove older generations on a background thread, e.g. left behind
+     * by a process killed while reclaiming.
+     */
+    public synchronized void reclaimAsync() {
+        if (mReclaimer != null && mReclaimer.isAlive())
+            return;
+        mReclaimer = new Thread("CacheReclaim") {
+            public void run() {
+                reclaim();
+            }
+        };
+        mReclaimer.setPriority(Thread.MIN_PRIORITY);
+        mReclaimer.start();
+    }
+
+    /**
+     * remove older generations and plain files in root (e.g. written there
+     * before generations were used), blocking. Files of the current one and
+     * any newer one created meanwhile are kept.
+     */
+    public void reclaim() {
+        while (true) {
+            File[] list = mRoot.listFiles();
+            if (list == null)
+                return;
+            int current = getGeneration();
+            boolean removed = false;
+            for (File dir: list) {
+                String name = dir.getName();
+                if (dir.isFile()) {
+                    if (!name.equals(GENERATION_FILE)
+                            && !name.equals(GENERATION_FILE + ".tmp")
+                            && dir.delete())
+                        removed = true;
+                    continue;
+                }
+                if (!name.startsWith(PREFIX))
+                    continue;
+                int generation;
+                try {
+                    generation = Integer.parseInt(name.substring(PREFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                if (generation < current) {
+                    delete(dir);
+                    removed = true;
+                }
+            }
+            // invalidated again while removing
+            if (!removed || getGeneration() == current)
+                return;
+        }
+    }
+
+    private static void delete(File dir) {
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (File file: list) {
+                if (file.isDirectory())
+                    delete(file);
+                else
+                    file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private int readGeneration() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(
+                    new File(mRoot, GENERATION_FILE)));
+            return in.readInt();
+        } catch (Exception e) {
+            return 0;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * replace the generation file atomically.
+     */
+    private boolean writeGeneration(int generation) {
+        File file = new File(mRoot, GENERATION_FILE);
+        File tmp = new File(mRoot, GENERATION_FILE + ".tmp");
+        DataOutputStream out = null;
+        try {
+            if (!mRoot.isDirectory() && !mRoot.mkdirs())
+                return false;
+            out = new DataOutputStream(new FileOutputStream(tmp));
+            out.writeInt(generation);
+            out.close();
+            out = null;
+            return tmp.renameTo(file);
+        } catch (Exception e) {
+            // ignore
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (Exception e) {
+                    // ignore
+                }
+            }
+        }
+        tmp.delete();
+        return false;
+    }
+}
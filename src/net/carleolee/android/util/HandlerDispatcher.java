@@ -0,0 +1,25 @@
+package net.carleolee.android.util;
+
+import android.os.Handler;
+
+/**
+ * {@link Dispatcher} posting results to a Handler, by default of the
+ * thread creating it (usually the main thread).
+ */
+public class HandlerDispatcher implements Dispatcher {
+
+    private final Handler mHandler;
+
+    public HandlerDispatcher() {
+        this(new Handler());
+    }
+
+    public HandlerDispatcher(Handler handler) {
+        mHandler = handler;
+    }
+
+    public void dispatch(Runnable task) {
+        // messages come from the global pool
+        mHandler.post(task);
+    }
+}
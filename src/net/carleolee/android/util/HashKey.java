@@ -0,0 +1,161 @@
+package net.carleolee.android.util;
+
+/**
+ * Compact 128-bit key for in-memory maps, computed with MurmurHash3 (x64,
+ * 128-bit variant) over the chars of a string. It is not a cryptographic
+ * digest, but much cheaper than MD5 and good enough to name cached images.
+ * The hex name is only built when asked for, typically by the disk layer.
+ */
+public final class HashKey {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    static final char[] HEX_CHARS = {
+        '0','1','2','3','4','5','6','7','8','9',
+        'a','b','c','d','e','f'
+    };
+
+    private final long mHigh;
+    private final long mLow;
+    private String mHex;
+
+    public HashKey(long high, long low) {
+        mHigh = high;
+        mLow = low;
+    }
+
+    /**
+     * hash given string, return null if it is null or empty.
+     */
+    public static HashKey of(String str) {
+        if (str == null || str.length() == 0)
+            return null;
+        int len = str.length();
+        long h1 = 0;
+        long h2 = 0;
+        int i = 0;
+        // 8 chars (16 bytes) per block
+        for (; i + 8 <= len; i += 8) {
+            long k1 = pack(str, i);
+            long k2 = pack(str, i + 4);
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+        long k1 = 0;
+        long k2 = 0;
+        int shift = 0;
+        for (; i < len; i++) {
+            long c = str.charAt(i);
+            if (shift < 64)
+                k1 |= c << shift;
+            else
+                k2 |= c << (shift - 64);
+            shift += 16;
+        }
+        h1 ^= mixK1(k1);
+        h2 ^= mixK2(k2);
+
+        h1 ^= len * 2;
+        h2 ^= len * 2;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix(h1);
+        h2 = fmix(h2);
+        h1 += h2;
+        h2 += h1;
+        return new HashKey(h1, h2);
+    }
+
+    private static long pack(String str, int off) {
+        return (long) str.charAt(off)
+                | ((long) str.charAt(off + 1) << 16)
+                | ((long) str.charAt(off + 2) << 32)
+                | ((long) str.charAt(off + 3) << 48);
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public long getHigh() {
+        return mHigh;
+    }
+
+    public long getLow() {
+        return mLow;
+    }
+
+    /**
+     * 64-bit form of this key, for maps keyed by primitive long.
+     */
+    public long longValue() {
+        return mHigh;
+    }
+
+    /**
+     * 32 chars lowercase hex name of this key. Built on first call.
+     */
+    public String toHexString() {
+        String hex = mHex;
+        if (hex == null) {
+            char[] buff = new char[32];
+            long v = mHigh;
+            for (int i = 15; i >= 0; i--) {
+                buff[i] = HEX_CHARS[(int) (v & 0x0f)];
+                v >>>= 4;
+            }
+            v = mLow;
+            for (int i = 31; i >= 16; i--) {
+                buff[i] = HEX_CHARS[(int) (v & 0x0f)];
+                v >>>= 4;
+            }
+            hex = new String(buff);
+            mHex = hex;
+        }
+        return hex;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mHigh ^ (mHigh >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof HashKey))
+            return false;
+        HashKey other = (HashKey) o;
+        return mHigh == other.mHigh && mLow == other.mLow;
+    }
+
+    @Override
+    public String toString() {
+        return toHexString();
+    }
+}
@@ -1,11 +1,28 @@
 package net.carleolee.android.util;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.widget.BaseAdapter;
 import android.widget.ImageView;
 
 /**
  * Base adapter for list, grid and gallery with icons.
+ * Raw images are cached by key; if a transformation chain is set, images are
+ * transformed on loader threads and the results cached by (key, signature).
+ * The raw cache is also read on loader threads, so access it while holding
+ * its lock. Adapters may instead attach to a {@link SharedImageCache}, then
+ * images outlive the adapter and displayed ones are pinned.
+ * Remote loads may show a preview first, see {@link #loadPreviewRemote}.
+ * An {@link EncodedCache} keeps encoded images in memory, so a bitmap
+ * cache miss decodes from memory instead of reading disk. With a
+ * {@link SizedImageCache} raw images are cached at a target size and
+ * derived from larger cached variants, displayed ones are pinned there.
  * @param <K> the type of key for icon
  * @param <E> the type of extra parameter
  */
@@ -13,12 +30,31 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
 
     protected CacheStrategy<K, Bitmap> mImageCache;
 
+    protected CacheStrategy<VariantKey, Bitmap> mVariantCache;
+
+    // previews shown until full images arrive, main thread only
+    protected CacheStrategy<K, Bitmap> mPreviewCache;
+
     protected AsyncLoader<K, String, E, ImageView, Bitmap> mImageLoader;
 
-    protected boolean mActive;
+    protected volatile boolean mActive;
 
     protected volatile boolean mNetworkUp = true;
 
+    // NetworkPolicy.QUALITY_* to request, see setNetworkClass()
+    private volatile int mQuality = NetworkPolicy.QUALITY_HIGH;
+
+    private volatile boolean mPrefetch = true;
+
+    private NetworkPolicy mNetworkPolicy;
+
+    // sizes the adapter's own caches, main thread only
+    private CacheTuner mTuner;
+    // binds and their cache hits since the last tune()
+    private int mTuneBinds;
+    private int mTuneHits;
+    private int mLastEvictions;
+
     protected final boolean mLocalAsync;
 
     protected final int mDefaultRes;
@@ -27,6 +63,51 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
 
     protected AsyncLoader.LoaderProxy<K, String, E, ImageView, Bitmap> mProxy;
 
+    private volatile Transformation[] mTransformations;
+
+    private volatile String mSignature;
+
+    // lookup key for mVariantCache, used on main thread only
+    private final VariantKey mProbe = new VariantKey();
+
+    protected SharedImageCache mSharedCache;
+
+    protected String mNamespace;
+
+    private volatile String mVariantNamespace;
+
+    private String mPreviewNamespace;
+
+    protected volatile EncodedCache mEncodedCache;
+
+    protected SizedImageCache mSizedCache;
+
+    // longest edge of raw images with a sized cache
+    protected int mTargetSize;
+
+    private volatile LoadTracer mTracer;
+
+    // image pinned in shared cache by each view, main thread only
+    private final HashMap<ImageView, Displayed> mDisplayed =
+            new HashMap<ImageView, Displayed>();
+
+    // misses collected by bindImages(), main thread only
+    private final ArrayList<K> mBatchKeys = new ArrayList<K>();
+    private final ArrayList<String> mBatchUrls = new ArrayList<String>();
+    private final ArrayList<E> mBatchExtras = new ArrayList<E>();
+    private final ArrayList<ImageView> mBatchImages = new ArrayList<ImageView>();
+
+    // keys warmed up before onResume(), cached strongly; main thread only
+    private final HashSet<K> mWarmKeys = new HashSet<K>();
+
+    private static final class Displayed {
+        // shared cache namespace, null if pinned in the sized cache
+        String namespace;
+        Object key;
+        // false while unpinned by onStop(), see repinAll()
+        boolean pinned;
+    }
+
     /**
      * constructor with default cache and loader capacity.
      * @param async load local image async or not
@@ -79,33 +160,454 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
                 loaderCapacity, loaderConcurrency, mProxy);
     }
 
+    /**
+     * constructor in auto-sizing mode: cache and loader capacity come from
+     * 'tuner', and cache capacity is adjusted to the hit ratio while
+     * binding. Ignored once a shared or sized cache is attached, which
+     * have byte budgets of their own.
+     * @param async load local image async or not
+     * @param default_res default resource id
+     * @param loading_res loading resource id
+     * @param tuner tuner of cache capacity
+     */
+    public IconAdapter(boolean async, int default_res, int loading_res,
+            CacheTuner tuner) {
+        mLocalAsync = async;
+        mDefaultRes = default_res;
+        mLoadingRes = loading_res;
+        init();
+        mTuner = tuner;
+        mImageCache = new CacheStrategy<K, Bitmap>(tuner.getCapacity());
+        mImageLoader = new AsyncLoader<K, String, E, ImageView, Bitmap>(
+                tuner.getLoaderCapacity(), LoaderEngine.DEFAULT_WORKERS, mProxy);
+    }
+
     private void init() {
-        mProxy = new AsyncLoader.LoaderProxy<K, String, E, ImageView, Bitmap>() {
-            @Override
-            public Bitmap doInBackground(K key, String url, E extra) {
-                Bitmap bm = null;
-                if (mLocalAsync)
-                    bm = loadImageLocal(key, url, extra);
-                if (bm == null) {
-                    if (mNetworkUp)
-                        bm = loadImageRemote(key, url, extra);
+        mProxy = new ImageProxy();
+    }
+
+    /**
+     * loads on loader threads, local sources on the local lane.
+     */
+    private class ImageProxy implements
+            AsyncLoader.LocalProxy<K, String, E, ImageView, Bitmap>,
+            AsyncLoader.BatchProxy<K, String, E, ImageView, Bitmap>,
+            AsyncLoader.PreviewProxy<K, String, E, ImageView, Bitmap> {
+
+        @Override
+        public Bitmap doInBackgroundLocal(K key, String url, E extra) {
+            Transformation[] chain = mTransformations;
+            Bitmap bm = null;
+            if (chain != null)
+                bm = getCachedImage(key);
+            boolean cached = (bm != null);
+            if (bm == null)
+                bm = deriveSized(key);
+            if (bm == null)
+                bm = decodeEncoded(key);
+            if (bm == null && mLocalAsync)
+                bm = loadImageLocal(key, url, extra);
+            if (bm != null && !cached)
+                bm = fitSize(bm);
+            if (chain != null && bm != null) {
+                if (!cached)
+                    putImage(key, bm);
+                bm = transform(chain, bm);
+            }
+            return bm;
+        }
+
+        @Override
+        public Bitmap doInBackground(K key, String url, E extra) {
+            // local sources missed already
+            Transformation[] chain = mTransformations;
+            Bitmap bm = null;
+            if (mNetworkUp) {
+                Bitmap preview = loadPreviewRemote(key, url, extra);
+                if (preview != null)
+                    publishPreview(key, preview);
+                bm = loadImageRemote(key, url, extra);
+            }
+            if (bm != null)
+                bm = fitSize(bm);
+            if (chain != null && bm != null) {
+                putImage(key, bm);
+                bm = transform(chain, bm);
+            }
+            return bm;
+        }
+
+        @Override
+        public void doInBackgroundBatch(List<K> keys, List<String> urls,
+                List<E> extras, List<Bitmap> results) {
+            Transformation[] chain = mTransformations;
+            if (mNetworkUp)
+                loadImagesRemote(keys, urls, extras, results);
+            for (int i = 0; i < results.size(); i++) {
+                Bitmap bm = results.get(i);
+                if (bm == null)
+                    continue;
+                bm = fitSize(bm);
+                if (chain != null) {
+                    putImage(keys.get(i), bm);
+                    bm = transform(chain, bm);
                 }
-                return bm;
+                results.set(i, bm);
             }
+        }
+
+        @Override
+        public void onPreview(K key, String url, E extra, ImageView image,
+                Bitmap preview) {
+            putPreview(key, preview);
+            if (image != null && key.equals(image.getTag()))
+                image.setImageBitmap(preview);
+        }
 
-            @Override
-            public void onLoaded(K key, String url, E extra, ImageView image,
-                    Bitmap drawable) {
+        @Override
+        public void onLoaded(K key, String url, E extra, ImageView image,
+                Bitmap drawable) {
+            if (image != null)
                 onImageLoaded(key, url, extra, image, drawable);
+            else if (drawable != null)
+                cacheLoaded(key, drawable);
+        }
+    }
+
+    /**
+     * set transformations applied to loaded images, in order. Pass nothing
+     * to show raw images. Pending tasks are discarded. Call on main thread.
+     */
+    public void setTransformations(Transformation... chain) {
+        if (chain == null || chain.length == 0) {
+            mTransformations = null;
+            mSignature = null;
+        } else {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < chain.length; i++) {
+                if (i > 0)
+                    sb.append('|');
+                sb.append(chain[i].getSignature());
             }
-        };
+            if (mVariantCache == null && mSharedCache == null)
+                mVariantCache = new CacheStrategy<VariantKey, Bitmap>(
+                        mImageCache.getCapacity());
+            mTransformations = chain.clone();
+            mSignature = sb.toString();
+        }
+        updateVariantNamespace();
+        // previews are cached transformed
+        if (mPreviewCache != null)
+            mPreviewCache.clear();
+        mImageLoader.invalidate();
     }
 
     /**
-     * set network status
+     * keep images in the process wide 'cache' under 'namespace' instead of
+     * the adapter's own cache, so they survive the adapter and share one
+     * memory budget with other adapters. Adapters of the same namespace
+     * share images, so keys must mean the same thing. Call on main thread
+     * before binding any image.
+     */
+    public void attachSharedCache(SharedImageCache cache, String namespace) {
+        if (cache == null || namespace == null)
+            throw new IllegalArgumentException("cache and namespace required");
+        mSharedCache = cache;
+        mNamespace = namespace;
+        mVariantCache = null;
+        updateVariantNamespace();
+    }
+
+    private void updateVariantNamespace() {
+        String sig = mSignature;
+        if (mSharedCache == null || sig == null)
+            mVariantNamespace = null;
+        else
+            mVariantNamespace = mNamespace + '#' + sig;
+        if (mSharedCache == null)
+            mPreviewNamespace = null;
+        else
+            mPreviewNamespace = (sig == null ? mNamespace : mVariantNamespace)
+                    + "#preview";
+    }
+
+    private Bitmap getPreview(K key) {
+        if (mSharedCache != null)
+            return mSharedCache.get(mPreviewNamespace, key);
+        return mPreviewCache == null ? null : mPreviewCache.get(key);
+    }
+
+    private void putPreview(K key, Bitmap bm) {
+        if (mSharedCache != null) {
+            mSharedCache.putWeak(mPreviewNamespace, key, bm);
+            return;
+        }
+        if (mPreviewCache == null)
+            mPreviewCache = new CacheStrategy<K, Bitmap>(mImageCache.getCapacity());
+        mPreviewCache.putWeak(key, bm);
+    }
+
+    private Bitmap getVariant(K key, String sig) {
+        if (mSharedCache != null)
+            return mSharedCache.get(mVariantNamespace, key);
+        Bitmap bm = mVariantCache.get(mProbe.set(key, sig));
+        mProbe.set(null, null);
+        return bm;
+    }
+
+    private void putVariant(K key, String sig, Bitmap bm, boolean strong) {
+        if (mSharedCache != null) {
+            if (strong)
+                mSharedCache.put(mVariantNamespace, key, bm);
+            else
+                mSharedCache.putWeak(mVariantNamespace, key, bm);
+        } else if (strong) {
+            mVariantCache.put(new VariantKey(key, sig), bm);
+        } else {
+            mVariantCache.putWeak(new VariantKey(key, sig), bm);
+        }
+    }
+
+    /**
+     * pin image shown by 'image' in the cache holding it: the sized cache
+     * for raw images if attached, else the shared cache.
+     */
+    private void pin(ImageView image, K key) {
+        String ns;
+        if (mSignature == null && mSizedCache != null)
+            ns = null;
+        else if (mSharedCache != null)
+            ns = mSignature == null ? mNamespace : mVariantNamespace;
+        else
+            return;
+        Displayed d = mDisplayed.get(image);
+        if (d == null) {
+            d = new Displayed();
+            mDisplayed.put(image, d);
+        } else if (d.key != null) {
+            if (d.pinned && d.key.equals(key) && (d.namespace == null
+                    ? ns == null : d.namespace.equals(ns)))
+                return;
+            if (d.pinned)
+                release(d);
+            d.namespace = null;
+            d.key = null;
+            d.pinned = false;
+        }
+        d.namespace = ns;
+        d.key = key;
+        // not cached, releasing it later would drop another
+        // adapter's pin
+        if (!acquire(d)) {
+            d.namespace = null;
+            d.key = null;
+            return;
+        }
+        d.pinned = true;
+    }
+
+    private boolean acquire(Displayed d) {
+        if (d.namespace == null)
+            return mSizedCache.acquire(d.key, mTargetSize);
+        return mSharedCache.acquire(d.namespace, d.key);
+    }
+
+    private void release(Displayed d) {
+        if (d.namespace == null)
+            mSizedCache.release(d.key, mTargetSize);
+        else
+            mSharedCache.release(d.namespace, d.key);
+    }
+
+    private void unpin(ImageView image) {
+        Displayed d = mDisplayed.get(image);
+        if (d != null && d.key != null) {
+            if (d.pinned)
+                release(d);
+            d.namespace = null;
+            d.key = null;
+            d.pinned = false;
+        }
+    }
+
+    /**
+     * release pins of displayed images, keeping what each view shows so
+     * {@link #repinAll} can pin them again.
+     */
+    private void unpinAll() {
+        for (Displayed d: mDisplayed.values()) {
+            if (d.pinned) {
+                release(d);
+                d.pinned = false;
+            }
+        }
+    }
+
+    /**
+     * pin displayed images again after unpinAll(). Images evicted
+     * meanwhile are forgotten, their rows pin when rebound.
+     */
+    private void repinAll() {
+        for (Displayed d: mDisplayed.values()) {
+            if (d.key == null || d.pinned)
+                continue;
+            if (acquire(d)) {
+                d.pinned = true;
+            } else {
+                d.namespace = null;
+                d.key = null;
+            }
+        }
+    }
+
+    /**
+     * apply transformations on background thread. Intermediate bitmaps are
+     * recycled, 'source' is not.
+     */
+    protected Bitmap transform(Transformation[] chain, Bitmap source) {
+        Bitmap bm = source;
+        for (Transformation t: chain) {
+            Bitmap out = t.transform(bm);
+            if (out != bm && bm != source)
+                bm.recycle();
+            bm = out;
+            if (bm == null)
+                break;
+        }
+        return bm;
+    }
+
+    /**
+     * cache raw images in 'cache' at 'size' (longest edge) instead of the
+     * adapter's own or shared cache. Images loaded larger are scaled down
+     * on loader threads, and a miss is derived from a larger variant
+     * cached by another adapter (e.g. a detail view) before loading; a
+     * smaller variant is shown while loading. The cache outlives the
+     * adapter. Call on main thread before binding any image.
+     */
+    public void attachSizedCache(SizedImageCache cache, int size) {
+        if (cache == null || size <= 0)
+            throw new IllegalArgumentException("cache and positive size required");
+        mSizedCache = cache;
+        mTargetSize = size;
+    }
+
+    /**
+     * downscale a larger cached variant of 'key', null if none.
+     */
+    private Bitmap deriveSized(K key) {
+        SizedImageCache cache = mSizedCache;
+        if (cache == null)
+            return null;
+        Bitmap larger = cache.getLarger(key, mTargetSize);
+        if (larger == null)
+            return null;
+        return SizedImageCache.downscale(larger, mTargetSize);
+    }
+
+    private Bitmap fitSize(Bitmap bm) {
+        if (mSizedCache == null)
+            return bm;
+        return SizedImageCache.downscale(bm, mTargetSize);
+    }
+
+    /**
+     * keep encoded images in 'cache', see {@link #putEncoded}. It may be
+     * shared by adapters with the same keys. Call on main thread before
+     * binding any image.
+     */
+    public void setEncodedCache(EncodedCache cache) {
+        mEncodedCache = cache;
+    }
+
+    /**
+     * keep encoded image of 'key' in the encoded cache, if any, e.g. from
+     * {@link #loadImageRemote} after a download or {@link #loadImageLocal}
+     * after reading a file. Can be called on any thread.
+     */
+    protected void putEncoded(K key, byte[] data, int offset, int length) {
+        EncodedCache cache = mEncodedCache;
+        if (cache != null)
+            cache.put(key, data, offset, length);
+    }
+
+    /**
+     * decode image of 'key' from the encoded cache, null if missed.
+     */
+    private Bitmap decodeEncoded(K key) {
+        EncodedCache cache = mEncodedCache;
+        if (cache == null)
+            return null;
+        byte[] data = cache.get(key);
+        if (data == null)
+            return null;
+        Bitmap bm = BitmapFactory.decodeByteArray(data, 0, data.length);
+        if (bm == null)
+            cache.remove(key);
+        else
+            trace(LoadTracer.DECODED, key, 0);
+        return bm;
+    }
+
+    /**
+     * report request events of this adapter and its loader to 'tracer',
+     * null to stop tracing.
+     */
+    public void setTracer(LoadTracer tracer) {
+        mTracer = tracer;
+        mImageLoader.setTracer(tracer);
+    }
+
+    /**
+     * report 'event' of 'key', e.g. LoadTracer.DOWNLOADED with the number of
+     * bytes from {@link #loadImageRemote}. Can be called on any thread.
+     */
+    protected void trace(int event, K key, long value) {
+        LoadTracer tracer = mTracer;
+        if (tracer != null)
+            tracer.onEvent(event, key, System.nanoTime(), value);
+    }
+
+    /**
+     * set network status, same as {@link #setNetworkClass} with
+     * NETWORK_UNMETERED or NETWORK_NONE. Call on main thread.
      */
     public void setNetworkStatus(boolean available) {
-        mNetworkUp = available;
+        setNetworkClass(available ? NetworkPolicy.NETWORK_UNMETERED
+                : NetworkPolicy.NETWORK_NONE);
+    }
+
+    /**
+     * rules applied by {@link #setNetworkClass}, null for the default
+     * {@link NetworkPolicy}.
+     */
+    public void setNetworkPolicy(NetworkPolicy policy) {
+        mNetworkPolicy = policy;
+    }
+
+    /**
+     * set class of the current network, one of the NetworkPolicy.NETWORK_*
+     * constants, e.g. from {@link NetworkPolicy#classify}. Selects image
+     * quality (see {@link #getQuality}), concurrent remote loads and
+     * whether {@link #prefetchImages} loads anything. Call on main thread.
+     */
+    public void setNetworkClass(int networkClass) {
+        if (mNetworkPolicy == null)
+            mNetworkPolicy = new NetworkPolicy();
+        NetworkPolicy.Rule rule = mNetworkPolicy.get(networkClass);
+        mNetworkUp = (networkClass != NetworkPolicy.NETWORK_NONE);
+        mQuality = rule.quality;
+        mPrefetch = mNetworkUp && rule.prefetch;
+        mImageLoader.setConcurrency(rule.concurrency);
+    }
+
+    /**
+     * image quality to request in {@link #loadImageRemote}, one of the
+     * NetworkPolicy.QUALITY_* constants. Images already cached are used
+     * whatever their quality.
+     */
+    protected int getQuality() {
+        return mQuality;
     }
 
     /**
@@ -118,6 +620,52 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
      */
     protected abstract Bitmap loadImageRemote(K key, String url, E extra);
 
+    /**
+     * load a preview from remote in background thread before
+     * {@link #loadImageRemote}, e.g. from a low resolution URL. It is shown
+     * and cached until the full image arrives. Return null for none, the
+     * default.
+     */
+    protected Bitmap loadPreviewRemote(K key, String url, E extra) {
+        return null;
+    }
+
+    /**
+     * show 'preview' for 'key' while its load goes on, e.g. the first scan
+     * of a progressive JPEG decoded in {@link #loadImageRemote}. Call on the
+     * loader thread loading 'key'; transformations are applied here.
+     */
+    protected void publishPreview(K key, Bitmap preview) {
+        Transformation[] chain = mTransformations;
+        if (chain != null) {
+            preview = transform(chain, preview);
+            if (preview == null)
+                return;
+        }
+        mImageLoader.publish(key, preview);
+    }
+
+    /**
+     * load several images from remote in background thread, adding one
+     * result (or null) per key to 'results' in order. Override to use a
+     * multi-get or sprite request and enable it by
+     * {@link #setRemoteBatching}; the default loads one by one.
+     */
+    protected void loadImagesRemote(List<K> keys, List<String> urls,
+            List<E> extras, List<Bitmap> results) {
+        for (int i = 0; i < keys.size(); i++)
+            results.add(loadImageRemote(keys.get(i), urls.get(i), extras.get(i)));
+    }
+
+    /**
+     * pass up to 'maxBatch' remote loads to {@link #loadImagesRemote} at
+     * once, waiting up to 'lingerMillis' to fill a batch. Results are
+     * cached and shown per key as usual. 1 turns batching off.
+     */
+    public void setRemoteBatching(int maxBatch, long lingerMillis) {
+        mImageLoader.setBatching(maxBatch, lingerMillis);
+    }
+
     /**
      * call on main thread when image loaded.
      */
@@ -125,6 +673,8 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
             Bitmap bm) {
         Object objTag = image.getTag();
         boolean matched = (objTag != null && key.equals(objTag));
+        if (!matched)
+            trace(LoadTracer.MISMATCHED, key, 0);
 
         if (bm == null) {
             if (matched && mLoadingRes > 0)
@@ -132,15 +682,33 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
         } else {
             if (matched)
                 image.setImageBitmap(bm);
-            if (mActive)
-                mImageCache.put(key, bm);
+            if (mTuner != null)
+                mTuner.observeImage(SharedImageCache.sizeOf(bm));
+            String sig = mSignature;
+            if (sig == null)
+                putImage(key, bm);
             else
-                mImageCache.putWeak(key, bm);
+                putVariant(key, sig, bm, mActive);
+            if (matched)
+                pin(image, key);
         }
 
         bindImageHook(key, url, extra, image, bm);
     }
 
+    /**
+     * cache an image prefetched without a view. Warmed up images are about
+     * to be shown, so they are cached strongly even before onResume().
+     */
+    private void cacheLoaded(K key, Bitmap bm) {
+        boolean strong = mActive || mWarmKeys.contains(key);
+        String sig = mSignature;
+        if (sig == null)
+            putImage(key, bm, strong);
+        else
+            putVariant(key, sig, bm, strong);
+    }
+
     /**
      * hook after bind image
      */
@@ -153,62 +721,324 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
      * bind image
      */
     protected void bindImage(K key, String url, E extra, ImageView image) {
+        if (bind(key, url, extra, image))
+            mImageLoader.loadData(key, url, extra, image);
+    }
+
+    /**
+     * bind images of several rows, e.g. the visible ones after a layout
+     * pass. Misses are queued in one batch and loaded in list order. 'extras'
+     * may be null, otherwise all lists are as long as 'keys'.
+     */
+    protected void bindImages(List<K> keys, List<String> urls, List<E> extras,
+            List<ImageView> images) {
+        for (int i = 0; i < keys.size(); i++) {
+            K key = keys.get(i);
+            String url = urls.get(i);
+            E extra = extras == null ? null : extras.get(i);
+            ImageView image = images.get(i);
+            if (bind(key, url, extra, image)) {
+                mBatchKeys.add(key);
+                mBatchUrls.add(url);
+                mBatchExtras.add(extra);
+                mBatchImages.add(image);
+            }
+        }
+        try {
+            mImageLoader.loadAll(mBatchKeys, mBatchUrls, mBatchExtras, mBatchImages);
+        } finally {
+            mBatchKeys.clear();
+            mBatchUrls.clear();
+            mBatchExtras.clear();
+            mBatchImages.clear();
+        }
+    }
+
+    /**
+     * load images not bound yet into cache, e.g. when a new page of items
+     * arrives, in one batch and in list order. A later bindImage() of the
+     * same key takes over its task. Does nothing if local images are loaded
+     * on main thread, as the loader would download them again, or if the
+     * network class does not allow prefetching. Call on main thread.
+     */
+    public void prefetchImages(List<K> keys, List<String> urls, List<E> extras) {
+        if (!mLocalAsync || !mPrefetch)
+            return;
+        loadMissing(keys, urls, extras, null);
+    }
+
+    /**
+     * queue loads of 'keys' that bind() would miss, without views and in
+     * list order. Queued keys are added to 'queued' if not null.
+     */
+    private void loadMissing(List<K> keys, List<String> urls, List<E> extras,
+            Set<K> queued) {
+        String sig = mSignature;
+        for (int i = 0; i < keys.size(); i++) {
+            K key = keys.get(i);
+            if (key == null)
+                continue;
+            Bitmap bm = sig == null ? getCachedImage(key) : getVariant(key, sig);
+            if (bm != null)
+                continue;
+            mBatchKeys.add(key);
+            mBatchUrls.add(urls.get(i));
+            mBatchExtras.add(extras == null ? null : extras.get(i));
+        }
+        try {
+            mImageLoader.loadAll(mBatchKeys, mBatchUrls, mBatchExtras, null);
+            if (queued != null)
+                queued.addAll(mBatchKeys);
+        } finally {
+            mBatchKeys.clear();
+            mBatchUrls.clear();
+            mBatchExtras.clear();
+        }
+    }
+
+    /**
+     * bind 'image' from cache or show placeholder, return true if it has to
+     * be loaded.
+     */
+    private boolean bind(K key, String url, E extra, ImageView image) {
         image.setTag(key);
         if (key == null) {
+            unpin(image);
             image.setImageResource(mDefaultRes);
             bindImageHook(key, url, extra, image, null);
-            return;
+            return false;
         }
+        trace(LoadTracer.BOUND, key, 0);
 
-        Bitmap bm = mImageCache.get(key);
-        if (bm == null && !mLocalAsync)
-            bm = loadImageLocal(key, url, extra);
+        String sig = mSignature;
+        Bitmap bm;
+        // raw image in memory, only needs the transformations
+        boolean hasRaw = false;
+        if (sig == null) {
+            bm = getCachedImage(key);
+            if (bm != null)
+                mTuneHits++;
+            else if (!mLocalAsync)
+                bm = loadImageLocal(key, url, extra);
+        } else {
+            bm = getVariant(key, sig);
+            if (bm != null) {
+                mTuneHits++;
+            } else {
+                Bitmap raw = getCachedImage(key);
+                if (raw == null && !mLocalAsync) {
+                    raw = loadImageLocal(key, url, extra);
+                    if (raw != null)
+                        putImage(key, raw);
+                }
+                hasRaw = (raw != null);
+            }
+        }
+        if (mTuner != null && ++mTuneBinds >= CacheTuner.WINDOW)
+            tune();
 
         if (bm != null) {
             image.setImageBitmap(bm);
+            pin(image, key);
             bindImageHook(key, url, extra, image, bm);
-        } else {
-            if (mNetworkUp && url != null && url.length() > 0) {
-                mImageLoader.loadData(key, url, extra, image);
-                if (mLoadingRes > 0)
-                    image.setImageResource(mLoadingRes);
-                else
-                    image.setImageResource(mDefaultRes);
-            } else {
+            return false;
+        }
+        unpin(image);
+        if (!hasRaw && mSizedCache != null)
+            hasRaw = (mSizedCache.getLarger(key, mTargetSize) != null);
+        if (hasRaw || mLocalAsync
+                || (mNetworkUp && url != null && url.length() > 0)) {
+            Bitmap preview = getPreview(key);
+            if (preview == null && mSizedCache != null)
+                preview = mSizedCache.getSmaller(key, mTargetSize);
+            if (preview != null)
+                image.setImageBitmap(preview);
+            else if (mLoadingRes > 0)
+                image.setImageResource(mLoadingRes);
+            else
                 image.setImageResource(mDefaultRes);
-                bindImageHook(key, url, extra, image, null);
-            }
+            return true;
+        }
+        image.setImageResource(mDefaultRes);
+        bindImageHook(key, url, extra, image, null);
+        return false;
+    }
+
+    /**
+     * resize own caches by the binds since the last call. Only lookups of
+     * bind() count: prefetch probes and loader threads would bias the hit
+     * ratio.
+     */
+    private void tune() {
+        int binds = mTuneBinds;
+        int hits = mTuneHits;
+        mTuneBinds = 0;
+        mTuneHits = 0;
+        if (mSharedCache != null || mSizedCache != null)
+            return;
+        int evictions;
+        synchronized (mImageCache) {
+            evictions = mImageCache.getEvictionCount();
+        }
+        if (mVariantCache != null)
+            evictions += mVariantCache.getEvictionCount();
+        // counters may wrap, differences still hold
+        int capacity = mTuner.adjust(binds, hits, evictions - mLastEvictions);
+        mLastEvictions = evictions;
+        synchronized (mImageCache) {
+            if (mImageCache.getCapacity() != capacity)
+                mImageCache.setCapacity(capacity);
+        }
+        if (mVariantCache != null && mVariantCache.getCapacity() != capacity)
+            mVariantCache.setCapacity(capacity);
+        if (mPreviewCache != null && mPreviewCache.getCapacity() != capacity)
+            mPreviewCache.setCapacity(capacity);
+    }
+
+    /**
+     * put raw image into cache, e.g. when it is decoded ahead of binding.
+     * Can be called on any thread.
+     */
+    public void putImage(K key, Bitmap bm) {
+        putImage(key, bm, mActive);
+    }
+
+    private void putImage(K key, Bitmap bm, boolean strong) {
+        SizedImageCache sized = mSizedCache;
+        if (sized != null) {
+            sized.put(key, mTargetSize, bm);
+            return;
+        }
+        SharedImageCache shared = mSharedCache;
+        if (shared != null) {
+            if (strong)
+                shared.put(mNamespace, key, bm);
+            else
+                shared.putWeak(mNamespace, key, bm);
+            return;
+        }
+        synchronized (mImageCache) {
+            if (strong)
+                mImageCache.put(key, bm);
+            else
+                mImageCache.putWeak(key, bm);
+        }
+    }
+
+    /**
+     * queue local reads of 'keys' ahead of binding, e.g. the first screen
+     * of a restored page before the first layout pass, so decoding starts
+     * at once. Reads run on the local lane of the loader in list order and
+     * are taken over by rows bound meanwhile; results arriving after
+     * {@link #resetLoader} or notifyDataSetChanged() are dropped. Results
+     * are cached strongly, even if they arrive before {@link #onResume}.
+     * Does not block. 'extras' may be null. Does nothing if local images
+     * are loaded on main thread. Call on main thread.
+     */
+    public void warmUp(List<K> keys, List<String> urls, List<E> extras) {
+        if (!mLocalAsync)
+            return;
+        loadMissing(keys, urls, extras, mActive ? null : mWarmKeys);
+    }
+
+    /**
+     * get raw image from cache, return null if missed. Can be called on any
+     * thread.
+     */
+    public Bitmap getCachedImage(K key) {
+        SizedImageCache sized = mSizedCache;
+        if (sized != null)
+            return sized.get(key, mTargetSize);
+        SharedImageCache shared = mSharedCache;
+        if (shared != null)
+            return shared.get(mNamespace, key);
+        synchronized (mImageCache) {
+            return mImageCache.get(key);
         }
     }
 
     /**
      * owner activty should call this in its onDestroy() method to
-     * clear cache and stop loader.
+     * clear cache and stop loader. Images in a shared or sized cache are
+     * kept but no longer pinned.
      */
     public void onDestroy() {
-        mImageCache.clear();
         mImageLoader.stop();
+        mWarmKeys.clear();
+        unpinAll();
+        mDisplayed.clear();
+        if (mSharedCache == null)
+            releaseCache(true);
     }
 
     /**
      * owner activity should call this method in its onStop() method
-     * to pause loader and reduce cache usage.
+     * to pause loader and reduce cache usage. Most recently used images
+     * stay strongly cached.
      */
     public void onStop() {
         mActive = false;
-        mImageCache.release();
+        trimMemory(CacheStrategy.TRIM_MEMORY_UI_HIDDEN);
         mImageLoader.pause();
     }
 
+    /**
+     * shrink cache according to memory pressure 'level', one of the
+     * CacheStrategy.TRIM_MEMORY_* constants. Owner activity may call this
+     * from onLowMemory() or onTrimMemory(). Images displayed are kept; from
+     * TRIM_MEMORY_UI_HIDDEN on, a shared or sized cache no longer pins them
+     * until {@link #onResume}.
+     */
+    public void trimMemory(int level) {
+        EncodedCache encoded = mEncodedCache;
+        if (encoded != null)
+            encoded.trim(level);
+        if (level >= CacheStrategy.TRIM_MEMORY_UI_HIDDEN)
+            unpinAll();
+        if (mSizedCache != null)
+            mSizedCache.trim(level);
+        if (mSharedCache != null) {
+            mSharedCache.trim(level);
+            return;
+        }
+        synchronized (mImageCache) {
+            mImageCache.trim(level);
+        }
+        if (mVariantCache != null)
+            mVariantCache.trim(level);
+        if (mPreviewCache != null)
+            mPreviewCache.trim(level);
+    }
+
     /**
      * owner activity should call this method in its onResume() method to
-     * resume loader.
+     * resume loader. Images displayed are pinned again in a shared or sized
+     * cache.
      */
     public void onResume() {
         mActive = true;
+        // everything is cached strongly from now on
+        mWarmKeys.clear();
+        repinAll();
         mImageLoader.resume();
     }
 
+    /**
+     * drop all images of this adapter in memory, including its encoded
+     * cache, and discard pending tasks, e.g. after the disk cache was
+     * invalidated. Bound views are rebound. Call on main thread.
+     */
+    public void invalidateImages() {
+        releaseCache(true);
+        EncodedCache encoded = mEncodedCache;
+        if (encoded != null)
+            encoded.clear();
+        if (mSizedCache != null)
+            mSizedCache.clear();
+        // invalidates the loader and rebinds
+        notifyDataSetChanged();
+    }
+
     /**
      * discard pending task.
      */
@@ -217,18 +1047,98 @@ public abstract class IconAdapter<K, E> extends BaseAdapter {
     }
 
     /**
-     * release or clear (if 'clear' is true) cache.
+     * release or clear (if 'clear' is true) cache. Displayed images are
+     * unpinned; with a shared cache, clear removes this namespace.
      */
     public void releaseCache(boolean clear) {
-        if (clear)
-            mImageCache.clear();
-        else
-            mImageCache.release();
+        unpinAll();
+        if (mSharedCache != null) {
+            if (clear) {
+                mSharedCache.clear(mNamespace);
+                String ns = mVariantNamespace;
+                if (ns != null)
+                    mSharedCache.clear(ns);
+                mSharedCache.clear(mPreviewNamespace);
+            }
+            return;
+        }
+        synchronized (mImageCache) {
+            if (clear)
+                mImageCache.clear();
+            else
+                mImageCache.release();
+        }
+        if (mVariantCache != null) {
+            if (clear)
+                mVariantCache.clear();
+            else
+                mVariantCache.release();
+        }
+        if (mPreviewCache != null) {
+            if (clear)
+                mPreviewCache.clear();
+            else
+                mPreviewCache.release();
+        }
     }
 
+    /**
+     * add keys of all current items to 'keys'. Return false if the adapter
+     * can not tell (default), then every change other than insertion
+     * discards all loader tasks.
+     */
+    protected boolean collectItemKeys(Set<K> keys) {
+        return false;
+    }
+
+    /**
+     * notify that the whole data set changed, all loader tasks are discarded.
+     */
     @Override
     public void notifyDataSetChanged() {
         mImageLoader.invalidate();
         super.notifyDataSetChanged();
     }
+
+    /**
+     * notify that 'count' items are appended to the end. Loader tasks are
+     * kept.
+     */
+    public void notifyItemsAppended(int count) {
+        notifyItemRangeInserted(getCount() - count, count);
+    }
+
+    /**
+     * notify that 'count' items are inserted at 'start'. Loader tasks are
+     * kept, existing keys stay valid.
+     */
+    public void notifyItemRangeInserted(int start, int count) {
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * notify that 'count' items at 'start' are removed. Only loader tasks of
+     * keys no longer in the adapter are discarded.
+     */
+    public void notifyItemRangeRemoved(int start, int count) {
+        retainLoaderTasks();
+        super.notifyDataSetChanged();
+    }
+
+    /**
+     * notify that 'count' items from 'start' are replaced. Only loader tasks
+     * of keys no longer in the adapter are discarded.
+     */
+    public void notifyItemRangeChanged(int start, int count) {
+        retainLoaderTasks();
+        super.notifyDataSetChanged();
+    }
+
+    private void retainLoaderTasks() {
+        Set<K> keys = new HashSet<K>();
+        if (collectItemKeys(keys))
+            mImageLoader.retain(keys);
+        else
+            mImageLoader.invalidate();
+    }
 }
@@ -0,0 +1,44 @@
+package net.carleolee.android.util;
+
+/**
+ * Receives lifecycle events of each load request, see
+ * {@link LoaderEngine#setTracer} and {@link IconAdapter#setTracer}.
+ * Events come from the main thread and from worker threads concurrently,
+ * so implementations must be thread safe and cheap.
+ * Implementations: {@link TraceHistogram}, {@link SystraceTracer}.
+ */
+public interface LoadTracer {
+
+    /** key bound to a view */
+    public static final int BOUND = 0;
+    /** new task queued */
+    public static final int ENQUEUED = 1;
+    /** queued task dropped because the queue is full */
+    public static final int EVICTED = 2;
+    /** task taken by a worker */
+    public static final int DEQUEUED = 3;
+    /** local lane found the data */
+    public static final int LOCAL_HIT = 4;
+    /** local lane missed, task moves to the network lane */
+    public static final int LOCAL_MISS = 5;
+    /** data downloaded, value is the number of bytes */
+    public static final int DOWNLOADED = 6;
+    /** image decoded */
+    public static final int DECODED = 7;
+    /** result passed to the proxy */
+    public static final int DELIVERED = 8;
+    /** result arrived after its view was bound to another key */
+    public static final int MISMATCHED = 9;
+    /** task or its result discarded by invalidate, cancel or retain */
+    public static final int INVALIDATED = 10;
+
+    public static final int EVENT_COUNT = 11;
+
+    /**
+     * @param event one of the constants above
+     * @param key key of the request
+     * @param time System.nanoTime() of the event
+     * @param value event specific value, 0 if none
+     */
+    public void onEvent(int event, Object key, long time, long value);
+}
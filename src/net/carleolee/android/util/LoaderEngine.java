@@ -0,0 +1,1185 @@
+package net.carleolee.android.util;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Queue, dedupe and worker core of {@link AsyncLoader}, in plain Java.
+ * Results are delivered through a {@link Dispatcher}, so the engine runs
+ * on any JVM as well as on Android.
+ * Tasks are kept in an intrusive hash table and recycled, so queueing a
+ * task does not allocate once the loader is warmed up.
+ * If the proxy is a {@link LocalProxy}, tasks go to a local lane served by
+ * its own workers first, and only misses move to the network lane. So
+ * local hits never wait behind slow remote loads.
+ * Tasks run on the engine's own worker threads, or on an Executor (e.g.
+ * virtual threads) with bounded global and per-host concurrency.
+ * A {@link BatchProxy} can load several network tasks in one request, see
+ * {@link #setBatching}. A {@link PreviewProxy} gets early results of a
+ * task, see {@link #publish}.
+ *
+ * @param <K> the type of keys
+ * @param <T> the type of parameter
+ * @param <E> the type of extra parameter
+ * @param <V> the type of object passed to callback
+ * @param <R> the type of result
+ */
+public class LoaderEngine<K, T, E, V, R> {
+
+    public interface LoaderProxy<K, T, E, V, R> {
+
+        /**
+         * perform data loading on background threads. Note that this method
+         * will be called concurrently by several working thread.
+         */
+        public R doInBackground(K key, T param, E extra);
+
+        /**
+         * run on the dispatcher thread (main thread for {@link AsyncLoader})
+         * after {@link #doInBackground}
+         */
+        public void onLoaded(K key, T param, E extra, V obj, R data);
+    }
+
+    public interface LocalProxy<K, T, E, V, R> extends LoaderProxy<K, T, E, V, R> {
+
+        /**
+         * load data from local sources on a local lane worker. Return null
+         * to pass the task to the network lane, which then calls
+         * {@link #doInBackground}.
+         */
+        public R doInBackgroundLocal(K key, T param, E extra);
+    }
+
+    public interface BatchProxy<K, T, E, V, R> extends LoaderProxy<K, T, E, V, R> {
+
+        /**
+         * load several network tasks at once, e.g. with a multi-get request.
+         * Add one result per key to 'results' in the same order, null for
+         * keys not loaded. Missing results count as null. The lists are
+         * reused, do not keep them. A single task still goes to
+         * {@link #doInBackground}.
+         */
+        public void doInBackgroundBatch(List<K> keys, List<T> params,
+                List<E> extras, List<R> results);
+    }
+
+    public interface PreviewProxy<K, T, E, V, R> extends LoaderProxy<K, T, E, V, R> {
+
+        /**
+         * run on the dispatcher thread with a result published by
+         * {@link LoaderEngine#publish} while the task is still loading.
+         * {@link #onLoaded} follows unless the task is discarded.
+         */
+        public void onPreview(K key, T param, E extra, V obj, R preview);
+    }
+
+    public interface HostMapper<K, T> {
+
+        /**
+         * host a task loads from, null if unlimited. Called when a task is
+         * queued and again on {@link #setHostLimit}, while holding the
+         * loader lock, so keep it cheap.
+         */
+        public String hostOf(K key, T param);
+    }
+
+    class Node implements Runnable {
+        Node prev;
+        Node next;
+        // next node in hash bucket
+        Node hnext;
+        int hash;
+        K key;
+        T param;
+        E extra;
+        V obj;
+        R data;
+        boolean cancelled;
+        // queued in local lane
+        boolean local;
+        // loader tag when the task was taken by a worker
+        int tag;
+        // host of network load, see setHostLimit()
+        String host;
+        // runs the task in executor mode, created once per node
+        Runnable work;
+        // next task loaded in the same batch
+        Node batch;
+
+        /** deliver result, called through the dispatcher */
+        public void run() {
+            deliver(this);
+        }
+    }
+
+
+    public final static int DEFAULT_WORKERS = 3;
+
+    public final static int DEFAULT_CAPACITY = 20;
+
+    /** workers of the local lane, if any */
+    public final static int DEFAULT_LOCAL_WORKERS = 2;
+
+    final int mCapacity;
+    final int mMaxWorker;
+    // network workers or slots in use now, see setConcurrency()
+    private int mConcurrency;
+    final int mMaxLocalWorker;
+    private int mWorkerNum;
+    // ids of network workers, never reused, see setConcurrency()
+    private int mWorkerSeq;
+    private int mLocalWorkerNum;
+
+    final Object mLock = new Object();
+
+    // key to node of queued and processing tasks
+    private Node[] mTable;
+    private int mSize;
+    // network lane, or the only one
+    private Node mHead;
+    private Node mTail;
+    private Node mLocalHead;
+    private Node mLocalTail;
+
+    // recycled nodes, linked by 'next'
+    private Node mPool;
+    private int mPoolSize;
+
+    private final LoaderProxy<K, T, E, V, R> mProxy;
+
+    private final LocalProxy<K, T, E, V, R> mLocalProxy;
+
+    private final Dispatcher mDispatcher;
+
+    private volatile boolean mStoped;
+    private volatile boolean mPaused;
+
+    private volatile int mTag;
+
+    private volatile LoadTracer mTracer;
+
+    // executor mode, null when running own worker threads
+    private final Executor mExecutor;
+    private int mRunning;
+    private int mLocalRunning;
+    private HostMapper<K, T> mHostMapper;
+    private int mMaxPerHost;
+    private final HashMap<String, int[]> mHostRunning = new HashMap<String, int[]>();
+
+    private final BatchProxy<K, T, E, V, R> mBatchProxy;
+    // network tasks per batch, 1 if batching is off
+    private int mMaxBatch = 1;
+    private long mLinger;
+
+    private final PreviewProxy<K, T, E, V, R> mPreviewProxy;
+
+    /** early result of a task, delivered through the dispatcher */
+    class Preview implements Runnable {
+        final Node node;
+        final K key;
+        final int tag;
+        final R data;
+
+        Preview(Node node, K key, int tag, R data) {
+            this.node = node;
+            this.key = key;
+            this.tag = tag;
+            this.data = data;
+        }
+
+        public void run() {
+            deliverPreview(this);
+        }
+    }
+
+    /** reusable argument lists of one batch */
+    class Batch {
+        final ArrayList<K> keys = new ArrayList<K>();
+        final ArrayList<T> params = new ArrayList<T>();
+        final ArrayList<E> extras = new ArrayList<E>();
+        final ArrayList<R> results = new ArrayList<R>();
+
+        void clear() {
+            keys.clear();
+            params.clear();
+            extras.clear();
+            results.clear();
+        }
+    }
+
+    /**
+     * @param dispatcher delivers results to
+     *        {@link LoaderProxy#onLoaded}, e.g. on main thread
+     */
+    public LoaderEngine(int capacity, int maxWorker,
+            LoaderProxy<K, T, E, V, R> proxy, Dispatcher dispatcher) {
+        this(capacity, maxWorker, proxy, dispatcher, null);
+    }
+
+    /**
+     * run tasks on 'executor' instead of own worker threads, at most
+     * 'maxConcurrent' network loads at a time (plus DEFAULT_LOCAL_WORKERS
+     * local ones for a {@link LocalProxy}). Queue order, dedupe, cancel and
+     * invalidate behave the same. The executor is not shut down by
+     * {@link #stop}.
+     */
+    public LoaderEngine(int capacity, int maxConcurrent,
+            LoaderProxy<K, T, E, V, R> proxy, Dispatcher dispatcher,
+            Executor executor) {
+        int maxWorker = maxConcurrent;
+        // executor == null: own worker threads
+        mExecutor = executor;
+        if (dispatcher == null)
+            throw new IllegalArgumentException("dispatcher required");
+        if (maxWorker < 1)
+            throw new IllegalArgumentException("maxWorker must be great than 1");
+        if (proxy instanceof LocalProxy) {
+            mLocalProxy = (LocalProxy<K, T, E, V, R>) proxy;
+            mMaxLocalWorker = DEFAULT_LOCAL_WORKERS;
+        } else {
+            mLocalProxy = null;
+            mMaxLocalWorker = 0;
+        }
+        if (proxy instanceof BatchProxy)
+            mBatchProxy = (BatchProxy<K, T, E, V, R>) proxy;
+        else
+            mBatchProxy = null;
+        if (proxy instanceof PreviewProxy)
+            mPreviewProxy = (PreviewProxy<K, T, E, V, R>) proxy;
+        else
+            mPreviewProxy = null;
+        // room for tasks held by workers
+        maxWorker += mMaxLocalWorker;
+        if (capacity <= maxWorker)
+            capacity = maxWorker + 1;
+
+        mCapacity = capacity;
+        mMaxWorker = maxWorker - mMaxLocalWorker;
+        mConcurrency = mMaxWorker;
+        mProxy = proxy;
+
+        mTag = 1;
+        mStoped = false;
+        mPaused = false;
+
+        mWorkerNum = 0;
+        int n = 4;
+        while (n * 3 < (capacity + maxWorker) * 4)
+            n <<= 1;
+        mTable = newTable(n);
+        mSize = 0;
+        mHead = new Node();
+        mTail = new Node();
+        mHead.next = mTail;
+        mTail.prev = mHead;
+        mLocalHead = new Node();
+        mLocalTail = new Node();
+        mLocalHead.next = mLocalTail;
+        mLocalTail.prev = mLocalHead;
+
+        mDispatcher = dispatcher;
+    }
+
+    /**
+     * limit network loads per host to 'maxPerHost' in executor mode. Tasks
+     * of a busy host wait in the queue while later ones for other hosts
+     * run. Queued tasks are mapped again, a null 'mapper' lifts the limit.
+     */
+    public void setHostLimit(HostMapper<K, T> mapper, int maxPerHost) {
+        if (mExecutor == null)
+            throw new IllegalStateException("host limit needs executor mode");
+        if (mapper != null && maxPerHost < 1)
+            throw new IllegalArgumentException("maxPerHost must be positive");
+        synchronized (mLock) {
+            mHostMapper = mapper;
+            mMaxPerHost = maxPerHost;
+            // running tasks keep their host until released
+            remapHosts(mHead, mTail);
+            remapHosts(mLocalHead, mLocalTail);
+            pump();
+        }
+    }
+
+    /**
+     * change the number of network workers (or executor slots) to
+     * 'concurrency', e.g. fewer connections on a metered network, at most
+     * the maximum given to the constructor. Extra workers quit after their
+     * current task. The local lane is not affected.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("concurrency must be positive");
+        if (concurrency > mMaxWorker)
+            concurrency = mMaxWorker;
+        synchronized (mLock) {
+            mConcurrency = concurrency;
+            if (mHead.next != mTail)
+                wakeWorker(false);
+            if (mExecutor == null)
+                mLock.notifyAll();
+        }
+    }
+
+    private void remapHosts(Node head, Node tail) {
+        for (Node n = head.next; n != tail; n = n.next)
+            n.host = mHostMapper == null ? null : mHostMapper.hostOf(n.key, n.param);
+    }
+
+    public int getConcurrency() {
+        synchronized (mLock) {
+            return mConcurrency;
+        }
+    }
+
+    /**
+     * load up to 'maxBatch' network tasks per call of
+     * {@link BatchProxy#doInBackgroundBatch}, 1 to turn batching off. A
+     * worker finding fewer tasks queued waits up to 'lingerMillis' for more.
+     * In executor mode there is no lingering, a batch takes the tasks of one
+     * host queued while all slots were busy and counts as one load.
+     */
+    public void setBatching(int maxBatch, long lingerMillis) {
+        if (mBatchProxy == null)
+            throw new IllegalStateException("batching needs a BatchProxy");
+        if (maxBatch < 1 || lingerMillis < 0)
+            throw new IllegalArgumentException("invalid batch size or linger time");
+        synchronized (mLock) {
+            mMaxBatch = maxBatch;
+            mLinger = lingerMillis;
+        }
+    }
+
+    /**
+     * executor running each task on its own virtual thread where the
+     * runtime supports it (Java 21), else a cached pool of daemon threads.
+     */
+    public static ExecutorService newTaskExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (Exception e) {
+            // not available
+        }
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "AsyncTask");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * report task events to 'tracer', null to stop tracing.
+     */
+    public void setTracer(LoadTracer tracer) {
+        mTracer = tracer;
+    }
+
+    private void trace(int event, Object key) {
+        LoadTracer tracer = mTracer;
+        if (tracer != null)
+            tracer.onEvent(event, key, System.nanoTime(), 0);
+    }
+
+    /**
+     * deliver 'preview' of the task of 'key' to
+     * {@link PreviewProxy#onPreview} now, while it is still loading. Call
+     * from {@link LoaderProxy#doInBackground} (or the batch or local
+     * variant) of that task. Previews come before the final result if the
+     * dispatcher runs tasks in order. Return false if the task is gone,
+     * e.g. invalidated or cancelled.
+     */
+    public boolean publish(K key, R preview) {
+        if (mPreviewProxy == null)
+            throw new IllegalStateException("publish needs a PreviewProxy");
+        Preview p;
+        synchronized (mLock) {
+            if (mStoped)
+                return false;
+            Node node = find(key, hash(key));
+            // only a task taken by a worker may publish
+            if (node == null || node.prev != null || node.cancelled
+                    || node.tag != mTag)
+                return false;
+            p = new Preview(node, key, node.tag, preview);
+        }
+        mDispatcher.dispatch(p);
+        return true;
+    }
+
+    private void deliverPreview(Preview p) {
+        Node node = p.node;
+        T param;
+        E extra;
+        V obj;
+        synchronized (mLock) {
+            // the node may be delivered and reused by now
+            if (mStoped || p.tag != mTag || node.key != p.key
+                    || node.cancelled)
+                return;
+            param = node.param;
+            extra = node.extra;
+            obj = node.obj;
+        }
+        mPreviewProxy.onPreview(p.key, param, extra, obj, p.data);
+    }
+
+    private void deliver(Node node) {
+        K key;
+        T param;
+        E extra;
+        V obj;
+        R data;
+        synchronized (mLock) {
+            if (mStoped)
+                return;
+            if (node.tag != mTag || node.cancelled) {
+                trace(LoadTracer.INVALIDATED, node.key);
+                recycle(node);
+                return;
+            }
+            unmap(node);
+            key = node.key;
+            param = node.param;
+            extra = node.extra;
+            obj = node.obj;
+            data = node.data;
+            recycle(node);
+        }
+        trace(LoadTracer.DELIVERED, key);
+        mProxy.onLoaded(key, param, extra, obj, data);
+    }
+
+    static int hash(Object key) {
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private Node find(K key, int hash) {
+        Node node = mTable[hash & (mTable.length - 1)];
+        while (node != null) {
+            if (node.hash == hash && (node.key == key || node.key.equals(key)))
+                return node;
+            node = node.hnext;
+        }
+        return null;
+    }
+
+    private void map(Node node) {
+        if (mSize * 4 >= mTable.length * 3)
+            resize();
+        int i = node.hash & (mTable.length - 1);
+        node.hnext = mTable[i];
+        mTable[i] = node;
+        mSize++;
+    }
+
+    private void unmap(Node node) {
+        int i = node.hash & (mTable.length - 1);
+        Node p = mTable[i];
+        if (p == node) {
+            mTable[i] = node.hnext;
+        } else {
+            while (p != null && p.hnext != node)
+                p = p.hnext;
+            // already dropped by invalidate()
+            if (p == null)
+                return;
+            p.hnext = node.hnext;
+        }
+        node.hnext = null;
+        mSize--;
+    }
+
+    private void resize() {
+        Node[] old = mTable;
+        Node[] table = newTable(old.length * 2);
+        for (int j = 0; j < old.length; j++) {
+            Node node = old[j];
+            while (node != null) {
+                Node next = node.hnext;
+                int i = node.hash & (table.length - 1);
+                node.hnext = table[i];
+                table[i] = node;
+                node = next;
+            }
+        }
+        mTable = table;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Node[] newTable(int n) {
+        return (Node[]) new LoaderEngine.Node[n];
+    }
+
+    private void clearTable() {
+        Node[] table = mTable;
+        for (int i = 0; i < table.length; i++)
+            table[i] = null;
+        mSize = 0;
+    }
+
+    private Node obtain() {
+        Node node = mPool;
+        if (node == null)
+            return new Node();
+        mPool = node.next;
+        mPoolSize--;
+        node.next = null;
+        return node;
+    }
+
+    private void recycle(Node node) {
+        node.prev = null;
+        node.hnext = null;
+        node.key = null;
+        node.param = null;
+        node.extra = null;
+        node.obj = null;
+        node.data = null;
+        node.cancelled = false;
+        node.local = false;
+        node.host = null;
+        node.batch = null;
+        if (mPoolSize < mCapacity + mMaxWorker) {
+            node.next = mPool;
+            mPool = node;
+            mPoolSize++;
+        } else {
+            node.next = null;
+        }
+    }
+
+    private void detach(Node node) {
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+    }
+
+    private void attach(Node head, Node node) {
+        node.next = head.next;
+        node.prev = head;
+        node.next.prev = node;
+        head.next = node;
+    }
+
+    /**
+     * add new task to the queue.
+     * if task for key already exist, this new 'obj' will bind to that task.
+     */
+    public void loadData(K key, T param, E extra, V obj) {
+        synchronized (mLock) {
+            if (mStoped)
+                throw new IllegalStateException("This loader is stoped already");
+            wakeWorker(enqueue(key, param, extra, obj, true));
+        }
+    }
+
+    /**
+     * queue a batch of tasks, e.g. the icons of a page, with one lock
+     * acquisition and one wake-up. Tasks are taken in list order, the first
+     * one first. 'extras' and 'objs' may be null, otherwise they are as long
+     * as 'keys'. Unlike {@link #loadData}, a null obj keeps the one bound
+     * to a queued task, so a batch can prefetch without unbinding. Tasks
+     * without obj are prefetches: they queue behind all others and never
+     * evict a task with an obj.
+     */
+    public void loadAll(List<? extends K> keys, List<? extends T> params,
+            List<? extends E> extras, List<? extends V> objs) {
+        int n = keys.size();
+        if (n == 0)
+            return;
+        synchronized (mLock) {
+            if (mStoped)
+                throw new IllegalStateException("This loader is stoped already");
+            int local = 0;
+            // prefetches are appended, the first item first
+            for (int i = 0; i < n; i++) {
+                if (objs != null && objs.get(i) != null)
+                    continue;
+                if (enqueue(keys.get(i), params.get(i),
+                        extras == null ? null : extras.get(i), null, false))
+                    local++;
+            }
+            // bound ones go in at head, so the first item goes in last
+            for (int i = n - 1; objs != null && i >= 0; i--) {
+                V obj = objs.get(i);
+                if (obj == null)
+                    continue;
+                if (enqueue(keys.get(i), params.get(i),
+                        extras == null ? null : extras.get(i), obj, false))
+                    local++;
+            }
+            if (mExecutor != null) {
+                pump();
+                return;
+            }
+            int network = n - local;
+            while (local > 0 && mLocalWorkerNum < mMaxLocalWorker) {
+                mLocalWorkerNum++;
+                new Worker(mLocalWorkerNum, true).start();
+                local--;
+            }
+            while (network > 0 && mWorkerNum < mConcurrency) {
+                mWorkerNum++;
+                new Worker(++mWorkerSeq, false).start();
+                network--;
+            }
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * queue or refresh one task holding mLock, return true if it is in
+     * the local lane. A null 'obj' replaces the bound one only if 'rebind';
+     * otherwise it is a prefetch, appended at tail of its lane.
+     */
+    private boolean enqueue(K key, T param, E extra, V obj, boolean rebind) {
+        int hash = hash(key);
+        Node node = find(key, hash);
+        boolean local = (mLocalProxy != null);
+        boolean prefetch = (obj == null && !rebind);
+        if (node != null) {
+            if (!prefetch)
+                node.obj = obj;
+            // in queue, move to head of its lane
+            if (!prefetch && node.next != null && node.prev != null) {
+                local = node.local;
+                Node head = local ? mLocalHead : mHead;
+                if (node.prev != head) {
+                    detach(node);
+                    attach(head, node);
+                }
+            }
+        } else {
+            node = obtain();
+            node.hash = hash;
+            node.key = key;
+            node.param = param;
+            node.obj = obj;
+            node.extra = extra;
+            node.local = local;
+            if (mHostMapper != null)
+                node.host = mHostMapper.hostOf(key, param);
+            if (prefetch)
+                attach((local ? mLocalTail : mTail).prev, node);
+            else
+                attach(local ? mLocalHead : mHead, node);
+            map(node);
+            trace(LoadTracer.ENQUEUED, key);
+            if (mSize > mCapacity) {
+                Node victim = victim(prefetch);
+                if (victim != null) {
+                    trace(LoadTracer.EVICTED, victim.key);
+                    unmap(victim);
+                    detach(victim);
+                    recycle(victim);
+                }
+            }
+        }
+        return local;
+    }
+
+    /**
+     * queued task to drop when over capacity: the last prefetch, network
+     * lane first, else (unless 'prefetch' is queued) the oldest one.
+     */
+    private Node victim(boolean prefetch) {
+        for (Node n = mTail.prev; n != mHead; n = n.prev) {
+            if (n.obj == null)
+                return n;
+        }
+        for (Node n = mLocalTail.prev; n != mLocalHead; n = n.prev) {
+            if (n.obj == null)
+                return n;
+        }
+        if (prefetch)
+            return null;
+        Node tail = mTail.prev;
+        if (tail == mHead)
+            tail = mLocalTail.prev;
+        return tail == mLocalHead ? null : tail;
+    }
+
+    private void wakeWorker(boolean local) {
+        if (mExecutor != null) {
+            pump();
+        } else if (local && mLocalWorkerNum < mMaxLocalWorker) {
+            mLocalWorkerNum++;
+            Worker w = new Worker(mLocalWorkerNum, true);
+            w.start();
+        } else if (!local && mWorkerNum < mConcurrency) {
+            mWorkerNum++;
+            Worker w = new Worker(++mWorkerSeq, false);
+            w.start();
+        } else if (mLocalProxy == null) {
+            mLock.notify();
+        } else {
+            // workers of both lanes wait on the same lock
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * move task missed by the local lane to the network lane.
+     */
+    private void promote(Node node, int tag) {
+        if (mStoped)
+            return;
+        if (tag != mTag || node.cancelled) {
+            trace(LoadTracer.INVALIDATED, node.key);
+            recycle(node);
+            return;
+        }
+        node.local = false;
+        // the host limit may have changed while it was loading
+        node.host = mHostMapper == null ? null : mHostMapper.hostOf(node.key, node.param);
+        // a prefetch stays behind bound tasks
+        attach(node.obj == null ? mTail.prev : mHead, node);
+        wakeWorker(false);
+    }
+
+    /**
+     * executor mode: start queued tasks while there are free slots,
+     * most recent first.
+     */
+    private void pump() {
+        if (mStoped || mPaused)
+            return;
+        while (mLocalRunning < mMaxLocalWorker && mLocalHead.next != mLocalTail) {
+            mLocalRunning++;
+            if (!execute(mLocalHead.next))
+                return;
+        }
+        Node node = mHead.next;
+        while (mRunning < mConcurrency && node != mTail) {
+            Node next = node.next;
+            if (node.host == null || acquireHost(node.host)) {
+                mRunning++;
+                if (mMaxBatch > 1) {
+                    gather(node, mTail, mMaxBatch, true);
+                    next = node.next;
+                }
+                if (!execute(node))
+                    return;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * detach up to 'max - 1' tasks queued after 'first' and chain them to
+     * it by 'batch'. With 'sameHost', only tasks of the host of 'first'.
+     */
+    private void gather(Node first, Node tail, int max, boolean sameHost) {
+        Node last = first;
+        Node node = first.next;
+        int count = 1;
+        while (count < max && node != tail) {
+            Node next = node.next;
+            if (!sameHost || (first.host == null ? node.host == null
+                    : first.host.equals(node.host))) {
+                detach(node);
+                node.next = null;
+                node.prev = null;
+                last.batch = node;
+                last = node;
+                count++;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * wait up to mLinger for 'max' network tasks, holding mLock.
+     */
+    private void linger(Node head, Node tail, int max) {
+        long deadline = System.currentTimeMillis() + mLinger;
+        while (!mStoped && !mPaused && head.next != tail) {
+            int count = 0;
+            for (Node n = head.next; n != tail && count < max; n = n.next)
+                count++;
+            long left = deadline - System.currentTimeMillis();
+            if (count >= max || left <= 0)
+                break;
+            try {
+                mLock.wait(left);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * load the tasks chained from 'first' with one call of the batch proxy
+     * and store their results. A failed batch leaves every result null.
+     */
+    private void loadBatch(Node first, int tag, Batch batch) {
+        for (Node n = first; n != null; n = n.batch) {
+            trace(LoadTracer.DEQUEUED, n.key);
+            batch.keys.add(n.key);
+            batch.params.add(n.param);
+            batch.extras.add(n.extra);
+        }
+        try {
+            mBatchProxy.doInBackgroundBatch(batch.keys, batch.params,
+                    batch.extras, batch.results);
+        } catch (RuntimeException e) {
+            // deliver nulls, or the keys would stay mapped forever
+            batch.results.clear();
+        }
+        int i = 0;
+        for (Node n = first; n != null; n = n.batch, i++) {
+            n.data = i < batch.results.size() ? batch.results.get(i) : null;
+            n.tag = tag;
+        }
+        batch.clear();
+    }
+
+    /**
+     * dispatch results of the tasks chained from 'first'.
+     */
+    private void dispatchBatch(Node first) {
+        Node node = first;
+        while (node != null) {
+            Node next = node.batch;
+            node.batch = null;
+            mDispatcher.dispatch(node);
+            node = next;
+        }
+    }
+
+    private boolean acquireHost(String host) {
+        int[] running = mHostRunning.get(host);
+        if (running == null) {
+            running = new int[1];
+            mHostRunning.put(host, running);
+        }
+        if (running[0] >= mMaxPerHost)
+            return false;
+        running[0]++;
+        return true;
+    }
+
+    private void release(Node node, boolean local) {
+        if (local) {
+            mLocalRunning--;
+        } else {
+            mRunning--;
+            if (node.host != null)
+                mHostRunning.get(node.host)[0]--;
+        }
+    }
+
+    /**
+     * hand 'node' (and its batch) to the executor. If the executor rejects
+     * it, e.g. shut down, the slot is freed and the tasks are dropped so a
+     * later loadData() queues their keys again; return false then.
+     */
+    private boolean execute(final Node node) {
+        detach(node);
+        node.next = null;
+        node.prev = null;
+        node.tag = mTag;
+        if (node.work == null) {
+            node.work = new Runnable() {
+                public void run() {
+                    runTask(node);
+                }
+            };
+        }
+        for (Node n = node.batch; n != null; n = n.batch)
+            n.tag = mTag;
+        try {
+            mExecutor.execute(node.work);
+            return true;
+        } catch (RejectedExecutionException e) {
+            release(node, node.local);
+            Node n = node;
+            while (n != null) {
+                Node next = n.batch;
+                n.batch = null;
+                unmap(n);
+                trace(LoadTracer.INVALIDATED, n.key);
+                recycle(n);
+                n = next;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * executor mode: load one task, like a worker thread does.
+     */
+    private void runTask(Node node) {
+        if (node.batch != null) {
+            loadBatch(node, node.tag, new Batch());
+            synchronized (mLock) {
+                release(node, false);
+                pump();
+            }
+            dispatchBatch(node);
+            return;
+        }
+        trace(LoadTracer.DEQUEUED, node.key);
+        boolean local = node.local;
+        R data = null;
+        try {
+            if (local) {
+                data = mLocalProxy.doInBackgroundLocal(node.key, node.param,
+                        node.extra);
+                trace(data != null ? LoadTracer.LOCAL_HIT
+                        : LoadTracer.LOCAL_MISS, node.key);
+            } else {
+                data = mProxy.doInBackground(node.key, node.param, node.extra);
+            }
+        } catch (RuntimeException e) {
+            // a failed load is delivered as null, the slot must be freed
+            data = null;
+        }
+        synchronized (mLock) {
+            release(node, local);
+            if (local && data == null) {
+                promote(node, node.tag);
+                return;
+            }
+            node.data = data;
+            pump();
+        }
+        mDispatcher.dispatch(node);
+    }
+
+    private void clearQueues() {
+        clearTable();
+        // processing nodes are recycled when their result arrives
+        Node node = mHead.next;
+        while (node != mTail) {
+            Node next = node.next;
+            trace(LoadTracer.INVALIDATED, node.key);
+            recycle(node);
+            node = next;
+        }
+        mHead.next = mTail;
+        mTail.prev = mHead;
+        node = mLocalHead.next;
+        while (node != mLocalTail) {
+            Node next = node.next;
+            trace(LoadTracer.INVALIDATED, node.key);
+            recycle(node);
+            node = next;
+        }
+        mLocalHead.next = mLocalTail;
+        mLocalTail.prev = mLocalHead;
+    }
+
+    /**
+     * discard all task (include queued and processing)
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            if (!mStoped) {
+                mTag++;
+                clearQueues();
+            }
+        }
+    }
+
+    /**
+     * discard task (queued or processing) of given key.
+     */
+    public void cancel(K key) {
+        synchronized (mLock) {
+            Node node = find(key, hash(key));
+            if (node != null) {
+                unmap(node);
+                drop(node);
+            }
+        }
+    }
+
+    /**
+     * discard tasks (queued or processing) whose key is not in 'keys'.
+     * Tasks of remaining keys are kept, they are still valid.
+     */
+    public void retain(Set<K> keys) {
+        synchronized (mLock) {
+            Node[] table = mTable;
+            for (int i = 0; i < table.length; i++) {
+                Node node = table[i];
+                while (node != null) {
+                    Node next = node.hnext;
+                    if (!keys.contains(node.key)) {
+                        unmap(node);
+                        drop(node);
+                    }
+                    node = next;
+                }
+            }
+        }
+    }
+
+    private void drop(Node node) {
+        if (node.next != null && node.prev != null) {
+            // still in queue
+            detach(node);
+            trace(LoadTracer.INVALIDATED, node.key);
+            recycle(node);
+        } else {
+            // recycled when its result arrives
+            node.cancelled = true;
+        }
+    }
+
+    /**
+     * discard all task and stop all worker threads. You can not call
+     * {@link loadData} once this method is called.
+     */
+    public void stop() {
+        synchronized (mLock) {
+            if (mStoped) {
+                return;
+            } else {
+                mStoped = true;
+                clearQueues();
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * pause loader.
+     */
+    public void pause() {
+        synchronized (mLock) {
+            if (mStoped || mPaused)
+                return;
+            mPaused = true;
+        }
+    }
+
+    /**
+     * resume loader.
+     */
+    public void resume() {
+        synchronized (mLock) {
+            if (mStoped)
+                throw new IllegalArgumentException("This loader is stoped already");
+            if (mPaused) {
+                mPaused = false;
+                if (mExecutor != null)
+                    pump();
+                else if (mLocalProxy == null)
+                    mLock.notify();
+                else
+                    mLock.notifyAll();
+            }
+        }
+    }
+
+    class Worker extends Thread {
+        private int mWorkTag;
+        private final boolean mLocal;
+        private Batch mBatch;
+
+        public Worker(int id, boolean local) {
+            super((local ? "AsyncLocalWorker #" : "AsyncWorker #") + id);
+            mWorkTag = mTag;
+            mLocal = local;
+        }
+
+        public void run() {
+            final Node head = mLocal ? mLocalHead : mHead;
+            final Node tail = mLocal ? mLocalTail : mTail;
+            while (true) {
+                Node node = null;
+                synchronized (mLock) {
+                    mWorkTag = mTag;
+                    if (mStoped)
+                        break;
+                    if (!mLocal && mWorkerNum > mConcurrency) {
+                        // concurrency lowered, any worker may retire
+                        mWorkerNum--;
+                        break;
+                    }
+                    if (mPaused || head.next == tail) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException e) {
+                            // ignore
+                        }
+                        if (mStoped)
+                            break;
+                    } else {
+                        int max = mLocal ? 1 : mMaxBatch;
+                        if (max > 1 && mLinger > 0) {
+                            linger(head, tail, max);
+                            if (mStoped)
+                                break;
+                            if (mPaused || head.next == tail)
+                                continue;
+                        }
+                        node = head.next;
+                        if (max > 1)
+                            gather(node, tail, max, false);
+                        detach(node);
+                        node.next = null;
+                        node.prev = null;
+                        // publish() checks it while loading
+                        for (Node n = node; n != null; n = n.batch)
+                            n.tag = mWorkTag;
+
+                        // awake another worker if there is pending task
+                        if (head.next != tail) {
+                            if (mLocalProxy == null)
+                                mLock.notify();
+                            else
+                                mLock.notifyAll();
+                        }
+                    }
+                }
+                if (node != null && node.batch != null) {
+                    if (mBatch == null)
+                        mBatch = new Batch();
+                    loadBatch(node, mWorkTag, mBatch);
+                    dispatchBatch(node);
+                } else if (node != null) {
+                    trace(LoadTracer.DEQUEUED, node.key);
+                    R data;
+                    try {
+                        if (mLocal) {
+                            data = mLocalProxy.doInBackgroundLocal(node.key,
+                                    node.param, node.extra);
+                            trace(data != null ? LoadTracer.LOCAL_HIT
+                                    : LoadTracer.LOCAL_MISS, node.key);
+                        } else {
+                            data = mProxy.doInBackground(node.key, node.param,
+                                    node.extra);
+                        }
+                    } catch (RuntimeException e) {
+                        // deliver null, or the key would stay mapped and
+                        // this worker would be lost
+                        data = null;
+                    }
+                    if (mLocal && data == null) {
+                        synchronized (mLock) {
+                            promote(node, mWorkTag);
+                        }
+                        continue;
+                    }
+                    node.data = data;
+                    node.tag = mWorkTag;
+                    mDispatcher.dispatch(node);
+                }
+            }
+        }
+    }
+}
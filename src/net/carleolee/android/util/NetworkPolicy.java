@@ -0,0 +1,103 @@
+package net.carleolee.android.util;
+
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.telephony.TelephonyManager;
+
+/**
+ * What to load on each class of network: image quality, number of
+ * concurrent downloads and whether to prefetch. See
+ * {@link IconAdapter#setNetworkClass}.
+ */
+public class NetworkPolicy {
+
+    /** no connection */
+    public static final int NETWORK_NONE = 0;
+    /** Wi-Fi, Ethernet */
+    public static final int NETWORK_UNMETERED = 1;
+    /** cellular */
+    public static final int NETWORK_METERED = 2;
+    /** 2G cellular */
+    public static final int NETWORK_SLOW = 3;
+    /** cellular while roaming */
+    public static final int NETWORK_ROAMING = 4;
+
+    public static final int NETWORK_CLASS_COUNT = 5;
+
+    public static final int QUALITY_LOW = 0;
+    public static final int QUALITY_MEDIUM = 1;
+    public static final int QUALITY_HIGH = 2;
+
+    public static final class Rule {
+        /** concurrency of a rule using all the loader's workers */
+        public static final int ALL_WORKERS = Integer.MAX_VALUE;
+
+        /** one of the QUALITY_* constants */
+        public final int quality;
+        /**
+         * concurrent remote loads, capped by the loader concurrency the
+         * adapter was created with
+         */
+        public final int concurrency;
+        /** whether images not bound yet may be loaded */
+        public final boolean prefetch;
+
+        public Rule(int quality, int concurrency, boolean prefetch) {
+            if (concurrency < 1)
+                throw new IllegalArgumentException("concurrency must be positive");
+            this.quality = quality;
+            this.concurrency = concurrency;
+            this.prefetch = prefetch;
+        }
+    }
+
+    private final Rule[] mRules = new Rule[NETWORK_CLASS_COUNT];
+
+    /**
+     * default rules: full quality, all workers and prefetch on unmetered
+     * networks, smaller images with fewer connections and no prefetch on
+     * metered ones. NETWORK_NONE loads nothing remote whatever its rule
+     * says.
+     */
+    public NetworkPolicy() {
+        mRules[NETWORK_NONE] = new Rule(QUALITY_LOW, 1, false);
+        mRules[NETWORK_UNMETERED] = new Rule(QUALITY_HIGH, Rule.ALL_WORKERS, true);
+        mRules[NETWORK_METERED] = new Rule(QUALITY_MEDIUM, 2, false);
+        mRules[NETWORK_SLOW] = new Rule(QUALITY_LOW, 1, false);
+        mRules[NETWORK_ROAMING] = new Rule(QUALITY_LOW, 1, false);
+    }
+
+    public synchronized NetworkPolicy set(int networkClass, Rule rule) {
+        if (rule == null)
+            throw new NullPointerException("rule == null");
+        mRules[networkClass] = rule;
+        return this;
+    }
+
+    public synchronized Rule get(int networkClass) {
+        return mRules[networkClass];
+    }
+
+    /**
+     * class of network 'info', e.g. from
+     * ConnectivityManager.getActiveNetworkInfo(), null for none.
+     */
+    public static int classify(NetworkInfo info) {
+        if (info == null || !info.isAvailable())
+            return NETWORK_NONE;
+        if (info.getType() != ConnectivityManager.TYPE_MOBILE)
+            return NETWORK_UNMETERED;
+        if (info.isRoaming())
+            return NETWORK_ROAMING;
+        switch (info.getSubtype()) {
+        case TelephonyManager.NETWORK_TYPE_GPRS:
+        case TelephonyManager.NETWORK_TYPE_EDGE:
+        case TelephonyManager.NETWORK_TYPE_CDMA:
+        case TelephonyManager.NETWORK_TYPE_1xRTT:
+        case TelephonyManager.NETWORK_TYPE_IDEN:
+            return NETWORK_SLOW;
+        default:
+            return NETWORK_METERED;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package net.carleolee.android.util;
+
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+
+import android.graphics.Bitmap;
+
+/**
+ * Process wide bitmap cache shared by adapters. Entries are keyed by
+ * (namespace, key) and held strongly within one global byte budget, least
+ * recently used ones fall back to soft references. Bitmaps currently
+ * displayed are reference counted and never pushed out of the strong tier.
+ * This class is thread safe.
+ */
+public class SharedImageCache {
+
+    static final class Key {
+        String mNamespace;
+        Object mKey;
+        int mHash;
+
+        Key set(String namespace, Object key) {
+            mNamespace = namespace;
+            mKey = key;
+            mHash = namespace.hashCode() * 31 + key.hashCode();
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return mHash == other.mHash && mKey.equals(other.mKey)
+                    && mNamespace.equals(other.mNamespace);
+        }
+    }
+
+    static final class Entry {
+        Entry prev;
+        Entry next;
+        Key key;
+        Bitmap bitmap;
+        SoftReference<Bitmap> ref;
+        int size;
+        int refs;
+    }
+
+    private static SharedImageCache sInstance;
+
+    private final HashMap<Key, Entry> mMap = new HashMap<Key, Entry>();
+    private final Entry mHead;
+    private final Entry mTail;
+    private final Key mProbe = new Key();
+    private int mMaxBytes;
+    private int mBytes;
+    private int mSoftCount;
+
+    /**
+     * @param maxBytes budget of strongly held bitmaps
+     */
+    public SharedImageCache(int maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        mMaxBytes = maxBytes;
+        mHead = new Entry();
+        mTail = new Entry();
+        mHead.next = mTail;
+        mTail.prev = mHead;
+    }
+
+    /**
+     * the process wide instance. Its budget defaults to 1/8 of max heap.
+     */
+    public static synchronized SharedImageCache getInstance() {
+        if (sInstance == null)
+            sInstance = new SharedImageCache(
+                    (int) Math.min(Runtime.getRuntime().maxMemory() / 8,
+                    Integer.MAX_VALUE));
+        return sInstance;
+    }
+
+    /**
+     * set budget of the process wide instance, typically called in
+     * Application.onCreate() before any adapter attaches.
+     */
+    public static synchronized SharedImageCache init(int maxBytes) {
+        if (sInstance == null)
+            sInstance = new SharedImageCache(maxBytes);
+        else
+            sInstance.setMaxSize(maxBytes);
+        return sInstance;
+    }
+
+    static int sizeOf(Bitmap bm) {
+        return bm.getRowBytes() * bm.getHeight();
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxBytes;
+    }
+
+    /** bytes of strongly held bitmaps */
+    public synchronized int getSize() {
+        return mBytes;
+    }
+
+    public synchronized void setMaxSize(int maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        mMaxBytes = maxBytes;
+        trim();
+    }
+
+    private void detach(Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.next = null;
+        entry.prev = null;
+    }
+
+    private void attach(Entry entry) {
+        entry.prev = mHead;
+        entry.next = mHead.next;
+        entry.next.prev = entry;
+        mHead.next = entry;
+    }
+
+    private boolean isStrong(Entry entry) {
+        return entry.next != null;
+    }
+
+    private void promote(Entry entry, Bitmap bm) {
+        entry.bitmap = bm;
+        entry.size = sizeOf(bm);
+        mBytes += entry.size;
+        mSoftCount--;
+        attach(entry);
+    }
+
+    private void demote(Entry entry) {
+        detach(entry);
+        mBytes -= entry.size;
+        if (entry.ref == null || entry.ref.get() != entry.bitmap)
+            entry.ref = new SoftReference<Bitmap>(entry.bitmap);
+        entry.bitmap = null;
+        mSoftCount++;
+    }
+
+    private void remove(Entry entry) {
+        mMap.remove(entry.key);
+        if (isStrong(entry)) {
+            detach(entry);
+            mBytes -= entry.size;
+        } else {
+            mSoftCount--;
+        }
+    }
+
+    /**
+     * push least recently used, not displayed bitmaps out of the budget.
+     */
+    private void trim() {
+        Entry entry = mTail.prev;
+        while (mBytes > mMaxBytes && entry != mHead) {
+            Entry prev = entry.prev;
+            if (entry.refs == 0)
+                demote(entry);
+            entry = prev;
+        }
+        // drop collected soft entries once they pile up
+        if (mSoftCount > 64 && mSoftCount > mMap.size() / 2) {
+            Iterator<Entry> it = mMap.values().iterator();
+            while (it.hasNext()) {
+                Entry e = it.next();
+                if (!isStrong(e) && e.ref.get() == null) {
+                    it.remove();
+                    mSoftCount--;
+                }
+            }
+        }
+    }
+
+    /**
+     * shrink strongly held bytes according to memory pressure 'level', one
+     * of the CacheStrategy.TRIM_MEMORY_* constants. Displayed bitmaps are
+     * kept, the budget itself is unchanged.
+     */
+    public synchronized void trim(int level) {
+        int keep = CacheStrategy.trimmedSize(mBytes, level);
+        Entry entry = mTail.prev;
+        while (mBytes > keep && entry != mHead) {
+            Entry prev = entry.prev;
+            if (entry.refs == 0)
+                demote(entry);
+            entry = prev;
+        }
+    }
+
+    /**
+     * get cached bitmap, return null if missed.
+     */
+    public synchronized Bitmap get(String namespace, Object key) {
+        Entry entry = mMap.get(mProbe.set(namespace, key));
+        mProbe.mKey = null;
+        if (entry == null)
+            return null;
+        if (isStrong(entry)) {
+            if (entry.prev != mHead) {
+                detach(entry);
+                attach(entry);
+            }
+            return entry.bitmap;
+        }
+        Bitmap bm = entry.ref.get();
+        if (bm == null) {
+            remove(entry);
+            return null;
+        }
+        promote(entry, bm);
+        trim();
+        return bm;
+    }
+
+    /**
+     * cache bitmap with strong reference, within the budget.
+     */
+    public synchronized void put(String namespace, Object key, Bitmap bm) {
+        Entry entry = mMap.get(mProbe.set(namespace, key));
+        mProbe.mKey = null;
+        if (entry == null) {
+            entry = new Entry();
+            entry.key = new Key().set(namespace, key);
+            mMap.put(entry.key, entry);
+            mSoftCount++;
+        } else if (isStrong(entry)) {
+            detach(entry);
+            mBytes -= entry.size;
+            mSoftCount++;
+        }
+        promote(entry, bm);
+        trim();
+    }
+
+    /**
+     * cache bitmap with soft reference only, unless it is strongly cached.
+     */
+    public synchronized void putWeak(String namespace, Object key, Bitmap bm) {
+        Entry entry = mMap.get(mProbe.set(namespace, key));
+        mProbe.mKey = null;
+        if (entry == null) {
+            entry = new Entry();
+            entry.key = new Key().set(namespace, key);
+            mMap.put(entry.key, entry);
+            mSoftCount++;
+        } else if (isStrong(entry)) {
+            mBytes += sizeOf(bm) - entry.size;
+            entry.size = sizeOf(bm);
+            entry.bitmap = bm;
+            trim();
+            return;
+        }
+        if (entry.ref == null || entry.ref.get() != bm)
+            entry.ref = new SoftReference<Bitmap>(bm);
+    }
+
+    /**
+     * mark bitmap as displayed, it stays strongly cached until released.
+     * Return false if it is not cached, then there is nothing to release.
+     */
+    public synchronized boolean acquire(String namespace, Object key) {
+        Entry entry = mMap.get(mProbe.set(namespace, key));
+        mProbe.mKey = null;
+        if (entry == null)
+            return false;
+        if (!isStrong(entry)) {
+            Bitmap bm = entry.ref.get();
+            if (bm == null) {
+                remove(entry);
+                return false;
+            }
+            promote(entry, bm);
+        }
+        entry.refs++;
+        return true;
+    }
+
+    /**
+     * bitmap is not displayed any more by one holder.
+     */
+    public synchronized void release(String namespace, Object key) {
+        Entry entry = mMap.get(mProbe.set(namespace, key));
+        mProbe.mKey = null;
+        if (entry != null && entry.refs > 0) {
+            entry.refs--;
+            if (entry.refs == 0 && mBytes > mMaxBytes)
+                trim();
+        }
+    }
+
+    /**
+     * remove all entries of given namespace.
+     */
+    public synchronized void clear(String namespace) {
+        Iterator<Entry> it = mMap.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.key.mNamespace.equals(namespace)) {
+                it.remove();
+                if (isStrong(entry)) {
+                    detach(entry);
+                    mBytes -= entry.size;
+                } else {
+                    mSoftCount--;
+                }
+            }
+        }
+    }
+
+    /**
+     * remove all entries.
+     */
+    public synchronized void clear() {
+        mMap.clear();
+        mHead.next = mTail;
+        mTail.prev = mHead;
+        mBytes = 0;
+        mSoftCount = 0;
+    }
+}
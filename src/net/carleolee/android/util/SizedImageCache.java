@@ -0,0 +1,252 @@
+package net.carleolee.android.util;
+
+import java.util.HashMap;
+
+import android.graphics.Bitmap;
+
+/**
+ * Bitmap cache aware of size variants of one key, e.g. an icon shown at
+ * list size and at detail size. Each variant is labeled by the size it was
+ * requested at, the longest edge it was fit to; its bitmap may be smaller
+ * if the source was. So a smaller size can be derived from a larger cached
+ * variant by {@link #downscale} instead of loading again (a bitmap not
+ * larger than the size is reused as is), and a smaller variant can stand
+ * in while a larger one loads. Variants share one byte budget, least
+ * recently used ones are evicted first; displayed ones are reference
+ * counted and never evicted, see {@link #acquire}.
+ * This class is thread safe.
+ */
+public class SizedImageCache {
+
+    static final class Entry {
+        Entry prev;
+        Entry next;
+        // next larger variant of the same key
+        Entry larger;
+        Object key;
+        int size;
+        Bitmap bitmap;
+        int bytes;
+        int refs;
+    }
+
+    // key to its smallest variant
+    private final HashMap<Object, Entry> mMap = new HashMap<Object, Entry>();
+    private final Entry mHead;
+    private final Entry mTail;
+    private int mMaxBytes;
+    private int mBytes;
+
+    public SizedImageCache(int maxBytes) {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes must be positive");
+        mMaxBytes = maxBytes;
+        mHead = new Entry();
+        mTail = new Entry();
+        mHead.next = mTail;
+        mTail.prev = mHead;
+    }
+
+    public synchronized int getMaxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int getSize() {
+        return mBytes;
+    }
+
+    /**
+     * variant of 'key' at 'size', null if missed.
+     */
+    public synchronized Bitmap get(Object key, int size) {
+        Entry e = find(key, size);
+        if (e == null)
+            return null;
+        touch(e);
+        return e.bitmap;
+    }
+
+    /**
+     * smallest variant of 'key' larger than 'size', null if none.
+     */
+    public synchronized Bitmap getLarger(Object key, int size) {
+        for (Entry e = mMap.get(key); e != null; e = e.larger) {
+            if (e.size > size) {
+                touch(e);
+                return e.bitmap;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * largest variant of 'key' smaller than 'size', null if none.
+     */
+    public synchronized Bitmap getSmaller(Object key, int size) {
+        Entry found = null;
+        for (Entry e = mMap.get(key); e != null && e.size < size; e = e.larger)
+            found = e;
+        if (found == null)
+            return null;
+        touch(found);
+        return found.bitmap;
+    }
+
+    /**
+     * cache 'bm' as variant of 'key' at 'size', replacing the old one.
+     */
+    public synchronized void put(Object key, int size, Bitmap bm) {
+        if (key == null || bm == null)
+            throw new NullPointerException("key == null || bm == null");
+        Entry prev = null;
+        Entry e = mMap.get(key);
+        while (e != null && e.size < size) {
+            prev = e;
+            e = e.larger;
+        }
+        if (e != null && e.size == size) {
+            mBytes -= e.bytes;
+            unlink(e);
+        } else {
+            Entry entry = new Entry();
+            entry.key = key;
+            entry.size = size;
+            entry.larger = e;
+            if (prev == null)
+                mMap.put(key, entry);
+            else
+                prev.larger = entry;
+            e = entry;
+        }
+        e.bitmap = bm;
+        e.bytes = SharedImageCache.sizeOf(bm);
+        mBytes += e.bytes;
+        link(e);
+        evict(mMaxBytes);
+    }
+
+    /**
+     * mark variant of 'key' at 'size' as displayed, it is not evicted until
+     * released. Return false if it is not cached, then there is nothing to
+     * release.
+     */
+    public synchronized boolean acquire(Object key, int size) {
+        Entry e = find(key, size);
+        if (e == null)
+            return false;
+        e.refs++;
+        return true;
+    }
+
+    /**
+     * variant is not displayed any more by one holder.
+     */
+    public synchronized void release(Object key, int size) {
+        Entry e = find(key, size);
+        if (e != null && e.refs > 0) {
+            e.refs--;
+            if (e.refs == 0 && mBytes > mMaxBytes)
+                evict(mMaxBytes);
+        }
+    }
+
+    /**
+     * remove all variants of 'key', displayed or not.
+     */
+    public synchronized void remove(Object key) {
+        for (Entry e = mMap.remove(key); e != null; e = e.larger) {
+            unlink(e);
+            mBytes -= e.bytes;
+        }
+    }
+
+    public synchronized void clear() {
+        mMap.clear();
+        mHead.next = mTail;
+        mTail.prev = mHead;
+        mBytes = 0;
+    }
+
+    /**
+     * shrink according to memory pressure 'level', one of the
+     * CacheStrategy.TRIM_MEMORY_* constants. Displayed variants are kept,
+     * the budget itself is unchanged.
+     */
+    public synchronized void trim(int level) {
+        evict(CacheStrategy.trimmedSize(mMaxBytes, level));
+    }
+
+    /**
+     * scale 'source' so its longest edge is 'size', keeping aspect ratio.
+     * Return 'source' itself if it is not larger. Call on background thread.
+     */
+    public static Bitmap downscale(Bitmap source, int size) {
+        int w = source.getWidth();
+        int h = source.getHeight();
+        int edge = Math.max(w, h);
+        if (edge <= size)
+            return source;
+        int dw = Math.max(1, w * size / edge);
+        int dh = Math.max(1, h * size / edge);
+        return Bitmap.createScaledBitmap(source, dw, dh, true);
+    }
+
+    private Entry find(Object key, int size) {
+        for (Entry e = mMap.get(key); e != null && e.size <= size; e = e.larger) {
+            if (e.size == size)
+                return e;
+        }
+        return null;
+    }
+
+    /**
+     * evict least recently used, not displayed variants down to 'maxBytes'.
+     */
+    private void evict(int maxBytes) {
+        Entry e = mTail.prev;
+        while (mBytes > maxBytes && e != mHead) {
+            Entry prev = e.prev;
+            if (e.refs == 0)
+                removeEntry(e);
+            e = prev;
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        unlink(entry);
+        mBytes -= entry.bytes;
+        Entry first = mMap.get(entry.key);
+        if (first == entry) {
+            if (entry.larger == null)
+                mMap.remove(entry.key);
+            else
+                mMap.put(entry.key, entry.larger);
+            return;
+        }
+        Entry e = first;
+        while (e.larger != entry)
+            e = e.larger;
+        e.larger = entry.larger;
+    }
+
+    private void touch(Entry e) {
+        if (e.prev != mHead) {
+            unlink(e);
+            link(e);
+        }
+    }
+
+    private void link(Entry e) {
+        e.prev = mHead;
+        e.next = mHead.next;
+        e.next.prev = e;
+        mHead.next = e;
+    }
+
+    private void unlink(Entry e) {
+        e.prev.next = e.next;
+        e.next.prev = e.prev;
+        e.prev = null;
+        e.next = null;
+    }
+}
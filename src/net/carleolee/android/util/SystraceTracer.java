@@ -0,0 +1,82 @@
+package net.carleolee.android.util;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * {@link LoadTracer} writing systrace (atrace marker) lines: an async
+ * section "icon:queue" from ENQUEUED to DEQUEUED, "icon:load" from
+ * DEQUEUED to DELIVERED, and a counter of downloaded bytes. The cookie of a
+ * request is the hash code of its key. Write to the kernel trace_marker
+ * file to see requests in systrace, or to a plain file with 'withTime' set
+ * so each line starts with its time in microseconds.
+ * Tracing stops at the first write error.
+ */
+public class SystraceTracer implements LoadTracer {
+
+    private final Writer mOut;
+    private final int mPid;
+    private final boolean mWithTime;
+    private final StringBuilder mLine = new StringBuilder();
+    private long mBytes;
+    private boolean mFailed;
+
+    public SystraceTracer(Writer out, int pid, boolean withTime) {
+        mOut = out;
+        mPid = pid;
+        mWithTime = withTime;
+    }
+
+    public synchronized void onEvent(int event, Object key, long time, long value) {
+        if (mFailed)
+            return;
+        int cookie = key == null ? 0 : key.hashCode();
+        try {
+            switch (event) {
+            case ENQUEUED:
+                write('S', "icon:queue", cookie, time);
+                break;
+            case DEQUEUED:
+                write('F', "icon:queue", cookie, time);
+                write('S', "icon:load", cookie, time);
+                break;
+            case LOCAL_MISS:
+                // moves back to a queue, the network lane
+                write('F', "icon:load", cookie, time);
+                write('S', "icon:queue", cookie, time);
+                break;
+            case DELIVERED:
+                write('F', "icon:load", cookie, time);
+                break;
+            case EVICTED:
+                write('F', "icon:queue", cookie, time);
+                break;
+            case INVALIDATED:
+                // unmatched finish marks are ignored by systrace
+                write('F', "icon:queue", cookie, time);
+                write('F', "icon:load", cookie, time);
+                break;
+            case DOWNLOADED:
+                mBytes += value;
+                write('C', "icon:bytes", mBytes, time);
+                break;
+            default:
+                break;
+            }
+            mOut.flush();
+        } catch (IOException e) {
+            mFailed = true;
+        }
+    }
+
+    private void write(char type, String name, long value, long time)
+            throws IOException {
+        StringBuilder sb = mLine;
+        sb.setLength(0);
+        if (mWithTime)
+            sb.append(time / 1000).append(' ');
+        sb.append(type).append('|').append(mPid).append('|').append(name)
+                .append('|').append(value).append('\n');
+        mOut.write(sb.toString());
+    }
+}
@@ -0,0 +1,185 @@
+package net.carleolee.android.util;
+
+import java.util.HashMap;
+
+/**
+ * {@link LoadTracer} counting events and aggregating per-request stage
+ * durations into log2 millisecond histograms. Bucket 0 counts durations
+ * under 1 ms, bucket i (i > 0) those in [2^(i-1), 2^i) ms, the last bucket
+ * everything longer.
+ */
+public class TraceHistogram implements LoadTracer {
+
+    /** ENQUEUED to first DEQUEUED */
+    public static final int STAGE_QUEUE = 0;
+    /** DEQUEUED to LOCAL_HIT or LOCAL_MISS */
+    public static final int STAGE_LOCAL = 1;
+    /** last DEQUEUED to DELIVERED */
+    public static final int STAGE_LOAD = 2;
+    /** BOUND (or ENQUEUED if not bound) to DELIVERED */
+    public static final int STAGE_TOTAL = 3;
+
+    public static final int STAGE_COUNT = 4;
+
+    public static final int BUCKETS = 16;
+
+    static final String[] EVENT_NAMES = {
+        "bound", "enqueued", "evicted", "dequeued", "local_hit", "local_miss",
+        "downloaded", "decoded", "delivered", "mismatched", "invalidated"
+    };
+
+    static final String[] STAGE_NAMES = {
+        "queue", "local", "load", "total"
+    };
+
+    // requests followed at most, older ones are forgotten
+    static final int MAX_REQUESTS = 1024;
+
+    // time not seen yet, nanoTime() may be any value
+    private static final long NONE = Long.MIN_VALUE;
+
+    // per request times: bound, enqueued, dequeued
+    private final HashMap<Object, long[]> mRequests = new HashMap<Object, long[]>();
+    private final long[] mCounts = new long[EVENT_COUNT];
+    private final long[][] mHistograms = new long[STAGE_COUNT][BUCKETS];
+    private long mBytes;
+
+    public synchronized void onEvent(int event, Object key, long time, long value) {
+        mCounts[event]++;
+        long[] req = mRequests.get(key);
+        switch (event) {
+        case BOUND:
+        case ENQUEUED:
+            if (req == null) {
+                if (mRequests.size() >= MAX_REQUESTS)
+                    mRequests.clear();
+                req = new long[] {NONE, NONE, NONE};
+                mRequests.put(key, req);
+            }
+            if (event == BOUND) {
+                // a new binding starts over
+                req[0] = time;
+                req[1] = NONE;
+                req[2] = NONE;
+            } else {
+                req[1] = time;
+            }
+            break;
+        case DEQUEUED:
+            if (req != null) {
+                if (req[2] == NONE && req[1] != NONE)
+                    add(STAGE_QUEUE, time - req[1]);
+                req[2] = time;
+            }
+            break;
+        case LOCAL_HIT:
+        case LOCAL_MISS:
+            if (req != null && req[2] != NONE)
+                add(STAGE_LOCAL, time - req[2]);
+            break;
+        case DOWNLOADED:
+            mBytes += value;
+            break;
+        case DELIVERED:
+            if (req != null) {
+                if (req[2] != NONE)
+                    add(STAGE_LOAD, time - req[2]);
+                long start = req[0] != NONE ? req[0] : req[1];
+                if (start != NONE)
+                    add(STAGE_TOTAL, time - start);
+                mRequests.remove(key);
+            }
+            break;
+        case EVICTED:
+        case INVALIDATED:
+            mRequests.remove(key);
+            break;
+        default:
+            break;
+        }
+    }
+
+    private void add(int stage, long nanos) {
+        long ms = nanos / 1000000;
+        int bucket = ms <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+        if (bucket >= BUCKETS)
+            bucket = BUCKETS - 1;
+        mHistograms[stage][bucket]++;
+    }
+
+    public synchronized long getCount(int event) {
+        return mCounts[event];
+    }
+
+    /** total bytes reported by DOWNLOADED */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /** copy of the histogram of 'stage' */
+    public synchronized long[] getHistogram(int stage) {
+        return mHistograms[stage].clone();
+    }
+
+    /**
+     * upper bound in ms of the bucket holding percentile 'p' of 'stage',
+     * or -1 if there is no sample.
+     */
+    public synchronized long percentile(int stage, int p) {
+        long[] h = mHistograms[stage];
+        long total = 0;
+        for (long c: h)
+            total += c;
+        if (total == 0)
+            return -1;
+        long rank = (total * p + 99) / 100;
+        long seen = 0;
+        for (int i = 0; i < h.length; i++) {
+            seen += h[i];
+            if (seen >= rank)
+                return 1L << i;
+        }
+        return 1L << (h.length - 1);
+    }
+
+    public synchronized void reset() {
+        mRequests.clear();
+        for (int i = 0; i < EVENT_COUNT; i++)
+            mCounts[i] = 0;
+        for (long[] h: mHistograms) {
+            for (int i = 0; i < h.length; i++)
+                h[i] = 0;
+        }
+        mBytes = 0;
+    }
+
+    /**
+     * counts, bytes and histograms as one JSON object.
+     */
+    public synchronized String toJson() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"events\":{");
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            if (i > 0)
+                sb.append(',');
+            sb.append('"').append(EVENT_NAMES[i]).append("\":").append(mCounts[i]);
+        }
+        sb.append("},\"bytes\":").append(mBytes).append(",\"stages\":{");
+        for (int s = 0; s < STAGE_COUNT; s++) {
+            if (s > 0)
+                sb.append(',');
+            sb.append('"').append(STAGE_NAMES[s]).append("\":{\"p50_ms\":")
+                    .append(percentile(s, 50)).append(",\"p90_ms\":")
+                    .append(percentile(s, 90)).append(",\"buckets\":[");
+            long[] h = mHistograms[s];
+            for (int i = 0; i < h.length; i++) {
+                if (i > 0)
+                    sb.append(',');
+                sb.append(h[i]);
+            }
+            sb.append("]}");
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+}
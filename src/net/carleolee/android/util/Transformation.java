@@ -0,0 +1,22 @@
+package net.carleolee.android.util;
+
+import android.graphics.Bitmap;
+
+/**
+ * Transformation applied to a decoded image on background thread, before it
+ * is cached and delivered.
+ */
+public interface Transformation {
+
+    /**
+     * return transformed bitmap, or 'source' itself if nothing changed.
+     * Do not recycle 'source', it may be cached.
+     */
+    public Bitmap transform(Bitmap source);
+
+    /**
+     * short string identifying this transformation and its parameters.
+     * Results are cached by (key, signature of the chain).
+     */
+    public String getSignature();
+}
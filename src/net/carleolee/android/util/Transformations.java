@@ -0,0 +1,92 @@
+package net.carleolee.android.util;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+import android.graphics.RectF;
+import android.graphics.Shader;
+
+/**
+ * Common icon transformations.
+ */
+public class Transformations {
+
+    private Transformations() {
+    }
+
+    /**
+     * crop the center square and scale it to size x size.
+     */
+    public static Transformation centerCrop(final int size) {
+        return new Transformation() {
+            public Bitmap transform(Bitmap source) {
+                int w = source.getWidth();
+                int h = source.getHeight();
+                if (w == size && h == size)
+                    return source;
+                int edge = Math.min(w, h);
+                Bitmap square = source;
+                if (w != h)
+                    square = Bitmap.createBitmap(source, (w - edge) / 2,
+                            (h - edge) / 2, edge, edge);
+                if (edge == size)
+                    return square;
+                Bitmap scaled = Bitmap.createScaledBitmap(square, size, size, true);
+                if (square != source && square != scaled)
+                    square.recycle();
+                return scaled;
+            }
+
+            public String getSignature() {
+                return "crop" + size;
+            }
+        };
+    }
+
+    /**
+     * round the corners with given radius in pixels.
+     */
+    public static Transformation roundedCorners(final float radius) {
+        return new Transformation() {
+            public Bitmap transform(Bitmap source) {
+                int w = source.getWidth();
+                int h = source.getHeight();
+                Bitmap out = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+                Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+                paint.setShader(new BitmapShader(source, Shader.TileMode.CLAMP,
+                        Shader.TileMode.CLAMP));
+                new Canvas(out).drawRoundRect(new RectF(0, 0, w, h), radius,
+                        radius, paint);
+                return out;
+            }
+
+            public String getSignature() {
+                return "round" + radius;
+            }
+        };
+    }
+
+    /**
+     * tint with given ARGB color.
+     */
+    public static Transformation tint(final int color) {
+        return new Transformation() {
+            public Bitmap transform(Bitmap source) {
+                Bitmap out = Bitmap.createBitmap(source.getWidth(),
+                        source.getHeight(), Bitmap.Config.ARGB_8888);
+                Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+                paint.setColorFilter(new PorterDuffColorFilter(color,
+                        PorterDuff.Mode.SRC_ATOP));
+                new Canvas(out).drawBitmap(source, 0, 0, paint);
+                return out;
+            }
+
+            public String getSignature() {
+                return "tint" + Integer.toHexString(color);
+            }
+        };
+    }
+}
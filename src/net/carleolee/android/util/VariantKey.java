@@ -0,0 +1,56 @@
+package net.carleolee.android.util;
+
+/**
+ * Cache key of a transformed image: original key plus the signature of the
+ * transformation chain.
+ */
+public final class VariantKey {
+
+    Object mKey;
+    String mSignature;
+    int mHash;
+
+    VariantKey() {
+    }
+
+    public VariantKey(Object key, String signature) {
+        set(key, signature);
+    }
+
+    /** reuse as lookup key, never store a key after changing it. */
+    VariantKey set(Object key, String signature) {
+        mKey = key;
+        mSignature = signature;
+        mHash = key == null ? 0 : key.hashCode() * 31 + signature.hashCode();
+        return this;
+    }
+
+    public Object getKey() {
+        return mKey;
+    }
+
+    public String getSignature() {
+        return mSignature;
+    }
+
+    @Override
+    public int hashCode() {
+        return mHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (o == this)
+            return true;
+        if (!(o instanceof VariantKey))
+            return false;
+        VariantKey other = (VariantKey) o;
+        return mHash == other.mHash && mKey.equals(other.mKey)
+                && mSignature.equals(other.mSignature);
+    }
+
+    @Override
+    public String toString() {
+        return mKey + "#" + mSignature;
+    }
+}
@@ -0,0 +1,147 @@
+package net.carleolee.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * The lookups a steady-state bind makes, and queueing through a warmed up
+ * loader, allocate nothing. Counted with the HotSpot per-thread allocation
+ * counter; skipped on JVMs without it.
+ */
+public class AllocationTest {
+
+    static final int KEYS = 16;
+    static final int ROUNDS = 2000;
+    // warm-up rounds, so the measured loop runs compiled code
+    static final int WARMUP = 20000;
+
+    private com.sun.management.ThreadMXBean mThreads;
+    private HashKey[] mKeys;
+    private String[] mUrls;
+
+    @Before
+    public void setUp() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        mThreads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(mThreads.isThreadAllocatedMemorySupported());
+        mThreads.setThreadAllocatedMemoryEnabled(true);
+        mKeys = new HashKey[KEYS];
+        mUrls = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            mUrls[i] = "http://localhost/icon/" + i;
+            mKeys[i] = HashKey.of(mUrls[i]);
+        }
+    }
+
+    private long allocated() {
+        return mThreads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /** bytes allocated by 'task', less the cost of measuring */
+    private long measure(Runnable task) {
+        for (int i = 0; i < WARMUP / ROUNDS; i++)
+            task.run();
+        long empty = allocated();
+        empty = allocated() - empty;
+        long start = allocated();
+        task.run();
+        return Math.max(0, allocated() - start - empty);
+    }
+
+    @Test
+    public void cacheHitsAndUpdates() {
+        final CacheStrategy<HashKey, Object> cache = new CacheStrategy<HashKey, Object>(KEYS * 2);
+        final Object value = new Object();
+        for (HashKey key: mKeys)
+            cache.put(key, value);
+        long bytes = measure(new Runnable() {
+            public void run() {
+                for (int r = 0; r < ROUNDS; r++) {
+                    for (HashKey key: mKeys) {
+                        assertNotNull(cache.get(key));
+                        cache.put(key, value);
+                    }
+                }
+            }
+        });
+        assertEquals(0, bytes);
+    }
+
+    @Test
+    public void variantLookupsWithProbe() {
+        final CacheStrategy<VariantKey, Object> cache =
+                new CacheStrategy<VariantKey, Object>(KEYS * 2);
+        final Object value = new Object();
+        final String sig = "round(8)";
+        for (HashKey key: mKeys)
+            cache.put(new VariantKey(key, sig), value);
+        final VariantKey probe = new VariantKey();
+        long bytes = measure(new Runnable() {
+            public void run() {
+                for (int r = 0; r < ROUNDS; r++) {
+                    for (HashKey key: mKeys) {
+                        assertNotNull(cache.get(probe.set(key, sig)));
+                        probe.set(null, null);
+                    }
+                }
+            }
+        });
+        assertEquals(0, bytes);
+    }
+
+    @Test
+    public void queueingThroughPausedLoader() {
+        final LoaderEngine<HashKey, String, Void, Object, Object> loader =
+                new LoaderEngine<HashKey, String, Void, Object, Object>(KEYS * 2, 2,
+                new LoaderEngine.LoaderProxy<HashKey, String, Void, Object, Object>() {
+            public Object doInBackground(HashKey key, String url, Void extra) {
+                return null;
+            }
+
+            public void onLoaded(HashKey key, String url, Void extra, Object obj,
+                    Object data) {
+                // never called, loader is paused
+            }
+        }, Dispatchers.direct());
+        final Object view = new Object();
+        loader.pause();
+        try {
+            long bytes = measure(new Runnable() {
+                public void run() {
+                    for (int r = 0; r < ROUNDS; r++) {
+                        for (int i = 0; i < KEYS; i++)
+                            loader.loadData(mKeys[i], mUrls[i], null, view);
+                        // rebinding a queued key moves it, recycling nothing
+                        loader.loadData(mKeys[0], mUrls[0], null, view);
+                        loader.cancel(mKeys[1]);
+                        loader.invalidate();
+                    }
+                }
+            });
+            assertEquals(0, bytes);
+        } finally {
+            loader.stop();
+        }
+    }
+
+    @Test
+    public void tunerAdjustments() {
+        final CacheTuner tuner = new CacheTuner(10, 8 << 20);
+        long bytes = measure(new Runnable() {
+            public void run() {
+                for (int r = 0; r < ROUNDS; r++) {
+                    tuner.observeImage(16 * 1024);
+                    tuner.adjust(CacheTuner.WINDOW, r % CacheTuner.WINDOW, r % 8);
+                }
+            }
+        });
+        assertEquals(0, bytes);
+    }
+}
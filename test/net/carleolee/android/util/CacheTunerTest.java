@@ -0,0 +1,67 @@
+package net.carleolee.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class CacheTunerTest {
+
+    static final int W = CacheTuner.WINDOW;
+
+    @Test
+    public void startsAtThreeScreens() {
+        CacheTuner tuner = new CacheTuner(10, 64 << 20);
+        assertEquals(30, tuner.getCapacity());
+        assertEquals(20, tuner.getMinCapacity());
+        assertEquals(-1, tuner.getHitPercent());
+    }
+
+    @Test
+    public void growsWhileMissingAndEvicting() {
+        CacheTuner tuner = new CacheTuner(10, 64 << 20);
+        int capacity = tuner.getCapacity();
+        for (int i = 0; i < 5; i++) {
+            int next = tuner.adjust(W, W / 2, W / 4);
+            assertTrue(next > capacity);
+            capacity = next;
+        }
+        assertEquals(50, tuner.getHitPercent());
+    }
+
+    @Test
+    public void doesNotGrowWithoutEvictions() {
+        CacheTuner tuner = new CacheTuner(10, 64 << 20);
+        // misses of new rows only, the cache is not too small
+        for (int i = 0; i < 5; i++)
+            tuner.adjust(W, W / 2, 0);
+        assertEquals(tuner.getMinCapacity(), tuner.getCapacity());
+    }
+
+    @Test
+    public void shrinksSlowlyToMinimum() {
+        CacheTuner tuner = new CacheTuner(10, 64 << 20);
+        assertEquals(27, tuner.adjust(W, W, 0));
+        for (int i = 0; i < 20; i++)
+            tuner.adjust(W, W, 0);
+        assertEquals(20, tuner.getCapacity());
+    }
+
+    @Test
+    public void cappedByBudgetAndImageSize() {
+        int image = 100 * 1024;
+        CacheTuner tuner = new CacheTuner(4, 40 * image);
+        for (int i = 0; i < 64; i++)
+            tuner.observeImage(image);
+        for (int i = 0; i < 20; i++)
+            tuner.adjust(W, 0, W);
+        assertTrue(tuner.getCapacity() <= tuner.getMaxCapacity());
+        assertTrue(tuner.getMaxCapacity() <= 41);
+        // larger images lower the cap at the next adjustment
+        for (int i = 0; i < 64; i++)
+            tuner.observeImage(4 * image);
+        tuner.adjust(W, 0, W);
+        assertTrue(tuner.getCapacity() <= 11);
+        assertTrue(tuner.getCapacity() >= tuner.getMinCapacity());
+    }
+}
@@ -0,0 +1,86 @@
+package net.carleolee.android.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EncodedCacheTest {
+
+    static final int CHUNK = 16;
+    static final int SLAB = 4 * CHUNK;
+
+    static byte[] data(int seed, int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++)
+            data[i] = (byte) (seed * 31 + i);
+        return data;
+    }
+
+    private static void put(EncodedCache cache, int key, int length) {
+        byte[] data = data(key, length);
+        assertTrue(cache.put(key, data, 0, length));
+    }
+
+    @Test
+    public void entriesSpanChunksAndSlabs() {
+        EncodedCache cache = new EncodedCache(4 * SLAB, false, CHUNK, SLAB);
+        put(cache, 1, 1);
+        put(cache, 2, 3 * CHUNK + 5);
+        put(cache, 3, CHUNK);
+        assertEquals(2 * SLAB, cache.getAllocatedSize());
+        assertEquals(6 * CHUNK, cache.getSize());
+        assertArrayEquals(data(1, 1), cache.get(1));
+        assertArrayEquals(data(2, 3 * CHUNK + 5), cache.get(2));
+        assertArrayEquals(data(3, CHUNK), cache.get(3));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        EncodedCache cache = new EncodedCache(SLAB, true, CHUNK, SLAB);
+        put(cache, 1, 2 * CHUNK);
+        put(cache, 2, 2 * CHUNK);
+        cache.get(1);
+        put(cache, 3, CHUNK);
+        assertNull(cache.get(2));
+        assertArrayEquals(data(1, 2 * CHUNK), cache.get(1));
+        assertArrayEquals(data(3, CHUNK), cache.get(3));
+        assertTrue(!cache.put(4, new byte[SLAB + 1], 0, SLAB + 1));
+    }
+
+    @Test
+    public void trimPacksSurvivorsAndReleasesSlabs() {
+        for (boolean direct: new boolean[] {false, true}) {
+            EncodedCache cache = new EncodedCache(4 * SLAB, direct, CHUNK, SLAB);
+            for (int key = 0; key < 16; key++)
+                put(cache, key, CHUNK - key % 3);
+            assertEquals(4 * SLAB, cache.getAllocatedSize());
+            // survivors are spread over all slabs, in the last one too
+            for (int key = 15; key >= 0; key -= 4)
+                cache.get(key);
+            cache.trim(CacheStrategy.TRIM_MEMORY_MODERATE);
+            assertEquals(4, cache.getCount());
+            assertEquals(SLAB, cache.getAllocatedSize());
+            for (int key = 15; key >= 0; key -= 4)
+                assertArrayEquals(data(key, CHUNK - key % 3), cache.get(key));
+            // freed room is reusable up to the budget again
+            for (int key = 16; key < 28; key++)
+                put(cache, key, CHUNK);
+            assertEquals(4 * SLAB, cache.getAllocatedSize());
+            assertArrayEquals(data(3, CHUNK), cache.get(3));
+        }
+    }
+
+    @Test
+    public void trimToEmptyReleasesAll() {
+        EncodedCache cache = new EncodedCache(2 * SLAB, false, CHUNK, SLAB);
+        put(cache, 1, SLAB + 1);
+        cache.trim(CacheStrategy.TRIM_MEMORY_COMPLETE);
+        assertEquals(0, cache.getAllocatedSize());
+        assertNull(cache.get(1));
+        put(cache, 2, CHUNK);
+        assertArrayEquals(data(2, CHUNK), cache.get(2));
+    }
+}
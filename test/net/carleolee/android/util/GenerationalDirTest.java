@@ -0,0 +1,55 @@
+package net.carleolee.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class GenerationalDirTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static File touch(File dir, String name) throws IOException {
+        dir.mkdirs();
+        File file = new File(dir, name);
+        assertTrue(file.createNewFile());
+        return file;
+    }
+
+    @Test
+    public void generationSurvivesReopen() {
+        File root = mFolder.getRoot();
+        GenerationalDir dir = new GenerationalDir(root);
+        assertEquals(0, dir.getGeneration());
+        assertEquals(1, dir.invalidate());
+        assertEquals(2, dir.invalidate());
+        assertEquals(2, new GenerationalDir(root).getGeneration());
+        assertEquals(new File(root, "gen-2"), dir.current());
+    }
+
+    @Test
+    public void reclaimRemovesOldGenerationsAndLooseFiles() throws IOException {
+        File root = mFolder.getRoot();
+        GenerationalDir dir = new GenerationalDir(root);
+        File old = touch(new File(root, "gen-0"), "a");
+        dir.invalidate();
+        File kept = touch(dir.current(), "b");
+        File loose = touch(root, "0123456789abcdef");
+        File other = touch(new File(root, "other"), "c");
+        dir.reclaim();
+        assertFalse(old.exists());
+        assertFalse(old.getParentFile().exists());
+        assertFalse(loose.exists());
+        assertTrue(kept.exists());
+        assertTrue(other.exists());
+        assertTrue(new File(root, "generation").isFile());
+        assertEquals(1, new GenerationalDir(root).getGeneration());
+    }
+}
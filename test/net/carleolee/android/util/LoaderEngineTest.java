@@ -0,0 +1,302 @@
+package net.carleolee.android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class LoaderEngineTest {
+
+    /** records loads and deliveries, loads of 'blocked' wait for 'gate' */
+    static class Proxy implements
+            LoaderEngine.LoaderProxy<Integer, String, Void, String, String> {
+        final List<Integer> loaded = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> delivered = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch gate = new CountDownLatch(1);
+        volatile int blocked = -1;
+        volatile int failing = -1;
+
+        public String doInBackground(Integer key, String param, Void extra) {
+            loaded.add(key);
+            if (key == failing)
+                throw new IllegalStateException("failing " + key);
+            if (key == blocked) {
+                started.countDown();
+                await(gate);
+            }
+            return "net" + key;
+        }
+
+        public void onLoaded(Integer key, String param, Void extra, String obj,
+                String data) {
+            delivered.add(key + ":" + obj + ":" + data);
+        }
+    }
+
+    /** local lane hits odd keys only */
+    static class LocalProxy extends Proxy implements
+            LoaderEngine.LocalProxy<Integer, String, Void, String, String> {
+        final List<Integer> local = Collections.synchronizedList(new ArrayList<Integer>());
+
+        public String doInBackgroundLocal(Integer key, String param, Void extra) {
+            local.add(key);
+            return key % 2 == 1 ? "local" + key : null;
+        }
+    }
+
+    private LoaderEngine<Integer, String, Void, String, String> mEngine;
+
+    @After
+    public void tearDown() {
+        if (mEngine != null)
+            mEngine.stop();
+    }
+
+    private LoaderEngine<Integer, String, Void, String, String> engine(Proxy proxy) {
+        mEngine = new LoaderEngine<Integer, String, Void, String, String>(
+                20, 1, proxy, Dispatchers.direct());
+        return mEngine;
+    }
+
+    static void await(CountDownLatch latch) {
+        try {
+            assertTrue("timed out", latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /** wait until 'proxy' delivered 'count' results */
+    static void awaitDelivered(Proxy proxy, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (proxy.delivered.size() < count) {
+            if (System.currentTimeMillis() > deadline)
+                fail("delivered " + proxy.delivered);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void sameKeyIsLoadedOnceAndDeliveredToLastObj() throws Exception {
+        Proxy proxy = new Proxy();
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.pause();
+        engine.loadData(1, "u", null, "a");
+        engine.loadData(1, "u", null, "b");
+        engine.resume();
+        awaitDelivered(proxy, 1);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList(1), proxy.loaded);
+        assertEquals(Collections.singletonList("1:b:net1"), proxy.delivered);
+    }
+
+    @Test(timeout = 10000)
+    public void invalidateDropsRunningAndQueuedTasks() throws Exception {
+        Proxy proxy = new Proxy();
+        proxy.blocked = 1;
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.loadData(1, "u", null, "a");
+        await(proxy.started);
+        engine.loadData(2, "u", null, "a");
+        engine.invalidate();
+        proxy.gate.countDown();
+        // a task queued after invalidate() carries the new tag
+        engine.loadData(3, "u", null, "a");
+        awaitDelivered(proxy, 1);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList("3:a:net3"), proxy.delivered);
+        assertFalse(proxy.loaded.contains(2));
+    }
+
+    @Test(timeout = 10000)
+    public void invalidatedKeyCanBeQueuedAgain() throws Exception {
+        Proxy proxy = new Proxy();
+        proxy.blocked = 1;
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.loadData(1, "u", null, "a");
+        await(proxy.started);
+        engine.invalidate();
+        engine.loadData(1, "u", null, "b");
+        proxy.gate.countDown();
+        awaitDelivered(proxy, 1);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList("1:b:net1"), proxy.delivered);
+    }
+
+    @Test(timeout = 10000)
+    public void cancelDropsOneKey() throws Exception {
+        Proxy proxy = new Proxy();
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.pause();
+        engine.loadData(1, "u", null, "a");
+        engine.loadData(2, "u", null, "a");
+        engine.cancel(1);
+        engine.resume();
+        awaitDelivered(proxy, 1);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList(2), proxy.loaded);
+        assertEquals(Collections.singletonList("2:a:net2"), proxy.delivered);
+    }
+
+    @Test(timeout = 10000)
+    public void cancelDropsResultOfRunningTask() throws Exception {
+        Proxy proxy = new Proxy();
+        proxy.blocked = 1;
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.loadData(1, "u", null, "a");
+        await(proxy.started);
+        engine.cancel(1);
+        proxy.gate.countDown();
+        engine.loadData(2, "u", null, "a");
+        awaitDelivered(proxy, 1);
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList("2:a:net2"), proxy.delivered);
+    }
+
+    @Test(timeout = 10000)
+    public void retainKeepsOnlyListedKeys() throws Exception {
+        Proxy proxy = new Proxy();
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.pause();
+        for (int i = 1; i <= 4; i++)
+            engine.loadData(i, "u", null, "a");
+        HashSet<Integer> keep = new HashSet<Integer>();
+        keep.add(2);
+        keep.add(4);
+        engine.retain(keep);
+        engine.resume();
+        awaitDelivered(proxy, 2);
+        Thread.sleep(50);
+        assertEquals(2, proxy.delivered.size());
+        assertTrue(proxy.delivered.contains("2:a:net2"));
+        assertTrue(proxy.delivered.contains("4:a:net4"));
+        assertFalse(proxy.loaded.contains(1));
+        assertFalse(proxy.loaded.contains(3));
+    }
+
+    @Test(timeout = 10000)
+    public void localMissIsPromotedToNetworkLane() throws Exception {
+        LocalProxy proxy = new LocalProxy();
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.loadData(1, "u", null, "a");
+        engine.loadData(2, "u", null, "b");
+        awaitDelivered(proxy, 2);
+        Thread.sleep(50);
+        assertTrue(proxy.local.contains(1));
+        assertTrue(proxy.local.contains(2));
+        // only the miss reaches the network
+        assertEquals(Collections.singletonList(2), proxy.loaded);
+        assertTrue(proxy.delivered.contains("1:a:local1"));
+        assertTrue(proxy.delivered.contains("2:b:net2"));
+    }
+
+    @Test(timeout = 10000)
+    public void stopDiscardsTasksAndRejectsNewOnes() throws Exception {
+        Proxy proxy = new Proxy();
+        proxy.blocked = 1;
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.loadData(1, "u", null, "a");
+        await(proxy.started);
+        engine.loadData(2, "u", null, "a");
+        engine.stop();
+        proxy.gate.countDown();
+        try {
+            engine.loadData(3, "u", null, "a");
+            fail("loadData after stop");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList(1), proxy.loaded);
+        assertTrue(proxy.delivered.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void failedLoadIsDeliveredAsNullAndWorkerSurvives() throws Exception {
+        Proxy proxy = new Proxy();
+        proxy.failing = 1;
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(proxy);
+        engine.loadData(1, "u", null, "a");
+        awaitDelivered(proxy, 1);
+        engine.loadData(2, "u", null, "a");
+        engine.loadData(1, "u", null, "b");
+        awaitDelivered(proxy, 3);
+        assertEquals("1:a:null", proxy.delivered.get(0));
+        assertTrue(proxy.delivered.contains("2:a:net2"));
+        assertTrue(proxy.delivered.contains("1:b:null"));
+    }
+
+    @Test(timeout = 10000)
+    public void rejectedTaskFreesSlotAndKey() throws Exception {
+        final AtomicInteger rejects = new AtomicInteger(1);
+        Executor executor = new Executor() {
+            public void execute(Runnable r) {
+                if (rejects.getAndDecrement() > 0)
+                    throw new RejectedExecutionException();
+                r.run();
+            }
+        };
+        Proxy proxy = new Proxy();
+        mEngine = new LoaderEngine<Integer, String, Void, String, String>(
+                20, 1, proxy, Dispatchers.direct(), executor);
+        mEngine.loadData(1, "u", null, "a");
+        assertTrue(proxy.loaded.isEmpty());
+        // the only slot is free again, and key 1 can be queued again
+        mEngine.loadData(2, "u", null, "a");
+        mEngine.loadData(1, "u", null, "b");
+        assertEquals(2, proxy.delivered.size());
+        assertTrue(proxy.delivered.contains("2:a:net2"));
+        assertTrue(proxy.delivered.contains("1:b:net1"));
+    }
+
+    @Test(timeout = 10000)
+    public void liftingHostLimitStartsWaitingTasks() throws Exception {
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try {
+            Proxy proxy = new Proxy();
+            proxy.blocked = 1;
+            mEngine = new LoaderEngine<Integer, String, Void, String, String>(
+                    20, 4, proxy, Dispatchers.direct(), executor);
+            mEngine.setHostLimit(new LoaderEngine.HostMapper<Integer, String>() {
+                public String hostOf(Integer key, String param) {
+                    return param;
+                }
+            }, 1);
+            mEngine.loadData(1, "h", null, "a");
+            await(proxy.started);
+            mEngine.loadData(2, "h", null, "a");
+            Thread.sleep(50);
+            assertFalse(proxy.loaded.contains(2));
+            mEngine.setHostLimit(null, 0);
+            awaitDelivered(proxy, 1);
+            assertEquals(Collections.singletonList("2:a:net2"), proxy.delivered);
+            proxy.gate.countDown();
+            awaitDelivered(proxy, 2);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void concurrencyIsCappedByMaxWorkers() {
+        LoaderEngine<Integer, String, Void, String, String> engine = engine(new Proxy());
+        engine.setConcurrency(100);
+        assertEquals(1, engine.getConcurrency());
+    }
+}